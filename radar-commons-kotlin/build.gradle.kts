@@ -17,6 +17,8 @@ dependencies {
 
     // Testing
     testImplementation(libs.hamcrest)
+    testImplementation(libs.ktor.client.cio)
+    testImplementation(libs.ktor.client.mock)
     testImplementation(libs.kotlinx.coroutines.test)
     testRuntimeOnly(libs.slf4j.simple)
 }
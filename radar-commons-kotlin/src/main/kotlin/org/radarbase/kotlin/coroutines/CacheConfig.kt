@@ -1,8 +1,10 @@
 package org.radarbase.kotlin.coroutines
 
+import kotlinx.coroutines.CoroutineScope
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.minutes
 import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource
 
 data class CacheConfig(
     /** Duration after which the cache is considered stale and should be refreshed. */
@@ -17,10 +19,40 @@ data class CacheConfig(
      * is very variable.
      */
     val maxSimultaneousCompute: Int = 1,
+    /**
+     * Time after [refreshDuration] that an expired value may still be returned from cache, while
+     * a single refresh runs in the background in [revalidateScope]. This also applies to values
+     * that are retried after [retryDuration]. If the background refresh fails, the stale value
+     * is still returned and the refresh is retried after [exceptionCacheDuration]. Exceptions
+     * are not returned after they expire. If zero, expired values are always recomputed before
+     * they are returned.
+     */
+    val maxStaleness: Duration = Duration.ZERO,
+    /** Scope to refresh stale values in. Required if [maxStaleness] is positive. */
+    val revalidateScope: CoroutineScope? = null,
+    /** Time source to determine the age of cached values with. */
+    val timeSource: TimeSource = TimeSource.Monotonic,
 ) {
+    /** Constructor without stale-while-revalidate settings, for binary compatibility. */
+    @Deprecated("Kept for binary compatibility", level = DeprecationLevel.HIDDEN)
+    constructor(
+        refreshDuration: Duration,
+        retryDuration: Duration,
+        exceptionCacheDuration: Duration,
+        maxSimultaneousCompute: Int,
+    ) : this(
+        refreshDuration = refreshDuration,
+        retryDuration = retryDuration,
+        exceptionCacheDuration = exceptionCacheDuration,
+        maxSimultaneousCompute = maxSimultaneousCompute,
+        maxStaleness = Duration.ZERO,
+    )
+
     init {
         require(retryDuration > Duration.ZERO) { "Cache fetch duration $retryDuration must be positive" }
         require(refreshDuration >= retryDuration) { "Cache maximum age $refreshDuration must be at least fetch timeout $retryDuration" }
         require(maxSimultaneousCompute > 0) { "At least one context must be able to compute the result" }
+        require(!maxStaleness.isNegative()) { "Cache maximum staleness $maxStaleness may not be negative" }
+        require(maxStaleness == Duration.ZERO || revalidateScope != null) { "Cache maximum staleness $maxStaleness requires a revalidate scope" }
     }
 }
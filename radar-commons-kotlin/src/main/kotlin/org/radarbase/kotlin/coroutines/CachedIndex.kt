@@ -0,0 +1,61 @@
+package org.radarbase.kotlin.coroutines
+
+/**
+ * Index of cached values by a secondary key. The index is rebuilt once after each refresh of
+ * the cache, so lookups are hash lookups instead of linear scans.
+ */
+interface CachedIndex<I, T> {
+    /**
+     * Find the value with given index key. If there are multiple values with the same index key,
+     * the first one is returned.
+     * If it does not contain the value and [CacheConfig.retryDuration]
+     * has passed since the last try, it will update the cache and try once more.
+     * @return value if found and null otherwise
+     */
+    suspend fun find(key: I): T?
+
+    /**
+     * Whether the cache contains a value with given index key.
+     * If it does not contain the value and [CacheConfig.retryDuration]
+     * has passed since the last try, it will update the cache and try once more.
+     */
+    suspend fun contains(key: I): Boolean
+}
+
+/** Index over the contents of [cache], built by [buildIndex] for each new cached value. */
+internal class CachedValueIndex<C, I, T>(
+    private val cache: CachedValue<C>,
+    private val buildIndex: (C) -> Map<I, T>,
+) : CachedIndex<I, T> {
+    @Volatile
+    private var indexed: IndexedContents<C, I, T>? = null
+
+    override suspend fun find(key: I): T? = cache.query({ index(it)[key] }, { it != null }).value
+
+    override suspend fun contains(key: I): Boolean = cache.test { key in index(it) }
+
+    private fun index(contents: C): Map<I, T> {
+        indexed?.let { if (it.contents === contents) return it.index }
+        return synchronized(this) {
+            val current = indexed
+            if (current != null && current.contents === contents) {
+                current.index
+            } else {
+                buildIndex(contents).also { indexed = IndexedContents(contents, it) }
+            }
+        }
+    }
+
+    private class IndexedContents<C, I, T>(
+        val contents: C,
+        val index: Map<I, T>,
+    )
+}
+
+/** Index the values of [values] by [selector], keeping the first value of each index key. */
+internal inline fun <I, T> indexFirstBy(
+    values: Iterable<T>,
+    selector: (T) -> I,
+): Map<I, T> = buildMap {
+    values.forEach { putIfAbsent(selector(it), it) }
+}
@@ -0,0 +1,185 @@
+package org.radarbase.kotlin.coroutines
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Map of values that are each loaded and cached separately, with full support for coroutines.
+ * Each key is backed by a [CachedValue], so only one coroutine context loads a given key at a
+ * time, and values are refreshed, retried and exceptions are cached according to [config].
+ *
+ * If the map contains more than [maxSize] keys, the least recently used key is evicted.
+ *
+ * @param batchLoader loads multiple values at once in [getAll]. If null, [loader] is called for
+ *        each key separately. Keys that are missing from the batch result are loaded with
+ *        [loader].
+ * @param loader loads the value of a single key.
+ */
+class CachedLoadingMap<K : Any, V>(
+    val config: CacheConfig = CacheConfig(),
+    val maxSize: Int = Int.MAX_VALUE,
+    private val batchLoader: (suspend (Set<K>) -> Map<K, V>)? = null,
+    private val loader: suspend (K) -> V,
+) {
+    private val hitCount = AtomicLong(0L)
+    private val missCount = AtomicLong(0L)
+    private val evictionCount = AtomicLong(0L)
+
+    private val entries = object : LinkedHashMap<K, CachedValue<V>>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<K, CachedValue<V>>?): Boolean {
+            return if (size > maxSize) {
+                evictionCount.incrementAndGet()
+                true
+            } else {
+                false
+            }
+        }
+    }
+
+    init {
+        require(maxSize > 0) { "Maximum cache size $maxSize must be positive" }
+    }
+
+    /** Number of keys in the map, including keys with a value that is still being loaded. */
+    val size: Int
+        get() = synchronized(entries) { entries.size }
+
+    /** Cache statistics since creation. */
+    val stats: Stats
+        get() = Stats(
+            hitCount = hitCount.get(),
+            missCount = missCount.get(),
+            evictionCount = evictionCount.get(),
+        )
+
+    /**
+     * Get the value of [key], loading it if it is not cached or if its cached value is older
+     * than [CacheConfig.refreshDuration]. If loading resulted in an exception, the exception is
+     * rethrown until [CacheConfig.exceptionCacheDuration] has passed.
+     */
+    suspend fun get(key: K): V = get(key) { true }.value
+
+    /**
+     * Get the value of [key], loading it if needed. If the cached value is not valid according
+     * to [evaluateValid], it is reloaded if [CacheConfig.retryDuration] has passed.
+     */
+    suspend fun get(key: K, evaluateValid: (V) -> Boolean): CachedValue.CacheResult<V> =
+        cachedValue(key).queryCounted(evaluateValid)
+
+    /**
+     * Get the values of all [keys]. Keys that are not cached or have expired are loaded with a
+     * single call to the batch loader, if provided. The results are stored as if they were
+     * loaded by [get], so keys that are already being loaded are not loaded again, and an
+     * exception of the batch loader is cached for each key in the batch.
+     * @return map of values, in iteration order of [keys].
+     */
+    suspend fun getAll(keys: Iterable<K>): Map<K, V> {
+        val cachedValues = synchronized(entries) {
+            keys.associateWithTo(LinkedHashMap()) { entries.getOrPut(it) { newCachedValue(it) } }
+        }
+
+        val batchLoader = batchLoader
+            ?: return cachedValues.mapValuesTo(LinkedHashMap(cachedValues.size)) { (_, cachedValue) ->
+                cachedValue.queryCounted { true }.value
+            }
+
+        val claimed = LinkedHashMap<K, DeferredCache<V>>()
+        cachedValues.forEach { (key, cachedValue) ->
+            cachedValue.claimComputation()?.let { claimed[key] = it }
+        }
+
+        if (claimed.isNotEmpty()) {
+            try {
+                val loaded = batchLoader(claimed.keys)
+                claimed.forEach { (key, deferred) ->
+                    val cachedValue = cachedValues.getValue(key)
+                    if (key in loaded) {
+                        @Suppress("UNCHECKED_CAST")
+                        cachedValue.completeComputation(deferred, loaded[key] as V)
+                    } else {
+                        cachedValue.compute(deferred)
+                    }
+                }
+            } catch (ex: Throwable) {
+                // do not leave other contexts waiting for the claimed keys
+                claimed.forEach { (key, deferred) ->
+                    cachedValues.getValue(key).failComputation(deferred, ex)
+                }
+                throw ex
+            }
+            missCount.addAndGet(claimed.size.toLong())
+        }
+
+        return cachedValues.mapValuesTo(LinkedHashMap(cachedValues.size)) { (key, cachedValue) ->
+            if (key in claimed) {
+                cachedValue.query({ it }) { true }.value
+            } else {
+                cachedValue.queryCounted { true }.value
+            }
+        }
+    }
+
+    /**
+     * Get the cached value of [key] without loading it.
+     * @return value if it is cached, or null if it is not cached, still loading, or the last
+     *         load resulted in an exception.
+     */
+    suspend fun getIfPresent(key: K): V? {
+        val cachedValue = synchronized(entries) { entries[key] } ?: return null
+        val contents = cachedValue.getFromCache() as? CachedValue.CacheValue ?: return null
+        return contents.value
+    }
+
+    /** Set the cached value of [key]. */
+    suspend fun set(key: K, value: V) {
+        cachedValue(key).set(value)
+    }
+
+    /**
+     * Remove [key] from the map. Note that this does not cancel existing loads of the key, but
+     * the loaded value will then not be stored.
+     */
+    fun remove(key: K) {
+        synchronized(entries) { entries.remove(key) }
+    }
+
+    /** Remove all keys from the map. */
+    fun clear() {
+        synchronized(entries) { entries.clear() }
+    }
+
+    private fun cachedValue(key: K): CachedValue<V> = synchronized(entries) {
+        entries.getOrPut(key) { newCachedValue(key) }
+    }
+
+    private fun newCachedValue(key: K): CachedValue<V> = CachedValue(config) { loader(key) }
+
+    /** Query the value and count whether it was retrieved from cache. */
+    private suspend fun CachedValue<V>.queryCounted(evaluateValid: (V) -> Boolean): CachedValue.CacheResult<V> {
+        val result = query({ it }, evaluateValid)
+        if (result is CachedValue.CacheHit) {
+            hitCount.incrementAndGet()
+        } else {
+            missCount.incrementAndGet()
+        }
+        return result
+    }
+
+    /**
+     * Cache statistics.
+     * @param hitCount number of values that were retrieved from cache.
+     * @param missCount number of values that were loaded by the retrieving coroutine.
+     * @param evictionCount number of keys that were evicted because the map was full.
+     */
+    data class Stats(
+        val hitCount: Long,
+        val missCount: Long,
+        val evictionCount: Long,
+    ) {
+        /** Fraction of requests that were retrieved from cache, or 1 if there were none. */
+        val hitRate: Double
+            get() {
+                val requestCount = hitCount + missCount
+                return if (requestCount == 0L) 1.0 else hitCount.toDouble() / requestCount
+            }
+    }
+}
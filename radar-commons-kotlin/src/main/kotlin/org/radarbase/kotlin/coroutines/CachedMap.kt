@@ -64,4 +64,27 @@ class CachedMap<K, V>(
      * has passed since the last try, it will update the cache and try once more.
      */
     suspend fun get(key: K): V? = query({ it[key] }, { it != null }).value
+
+    /**
+     * Create an index of the values by [selector], to find values by that index key without
+     * scanning the map. The index is rebuilt once after each cache refresh. Declare indexes once
+     * and reuse them, for example in a property next to the cached map.
+     */
+    fun <I> indexBy(selector: (V) -> I): CachedIndex<I, V> = CachedValueIndex(this) { map ->
+        indexFirstBy(map.values, selector)
+    }
+
+    companion object {
+        /**
+         * Create a cached map that is refreshed incrementally. On each refresh, [fetch] is
+         * called with the version of the previously loaded map, and it returns either the
+         * changes since that version or the full map. Changes are applied without copying the
+         * unchanged entries. [fetch] is called with null and must return the full map on the
+         * first load, and it may return the full map whenever the changes are not available.
+         */
+        fun <K, V> incremental(
+            cacheConfig: CacheConfig = CacheConfig(),
+            fetch: suspend (version: String?) -> MapUpdate<K, V>,
+        ): CachedMap<K, V> = CachedMap(cacheConfig, IncrementalMapSupplier(fetch)::get)
+    }
 }
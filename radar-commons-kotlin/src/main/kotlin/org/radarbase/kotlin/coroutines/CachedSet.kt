@@ -43,4 +43,13 @@ class CachedSet<T>(
      * has passed since the last try, it will update the cache and try once more.
      */
     override suspend fun get(): Set<T> = get { it.isNotEmpty() }.value
+
+    /**
+     * Create an index of the values by [selector], to find values by that index key without
+     * scanning the set. The index is rebuilt once after each cache refresh. Declare indexes once
+     * and reuse them, for example in a property next to the cached set.
+     */
+    fun <I> indexBy(selector: (T) -> I): CachedIndex<I, T> = CachedValueIndex(this) { set ->
+        indexFirstBy(set, selector)
+    }
 }
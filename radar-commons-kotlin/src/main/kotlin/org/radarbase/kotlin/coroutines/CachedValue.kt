@@ -3,7 +3,9 @@ package org.radarbase.kotlin.coroutines
 import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import kotlinx.coroutines.sync.Semaphore
+import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicReference
 import kotlin.coroutines.coroutineContext
 import kotlin.time.Duration
@@ -16,7 +18,8 @@ internal typealias DeferredCache<T> = CompletableDeferred<CachedValue.CacheConte
  * Caches a value with full support for coroutines. The value that will be cached is computed by
  * [supplier].
  * Only one coroutine context will compute the value at a time, other coroutine contexts will wait
- * for it to finish.
+ * for it to finish. If [CacheConfig.maxStaleness] is set, expired values are returned while
+ * they are refreshed in the background.
  */
 open class CachedValue<T>(
     val config: CacheConfig,
@@ -28,6 +31,11 @@ open class CachedValue<T>(
     } else {
         null
     }
+    private val isRevalidating = AtomicBoolean(false)
+
+    /** Time after which a failed background refresh may be retried. */
+    @Volatile
+    private var revalidateRetryAt: TimeMark? = null
 
     /**
      * Query the cached value by running [transform] and return its result if valid. If
@@ -87,7 +95,7 @@ open class CachedValue<T>(
         while (coroutineContext.isActive) {
             val deferred = raceForDeferred().value
 
-            val newValue = CacheValue(value)
+            val newValue = CacheValue(value, config.timeSource.markNow())
             deferred.complete(newValue)
             if (deferred.await() == newValue) {
                 return
@@ -125,13 +133,63 @@ open class CachedValue<T>(
         return query(predicate) { it }.value
     }
 
+    /**
+     * Claim the computation of the value, so that the caller can compute it. Other coroutine
+     * contexts wait for the claimed computation like for any other computation. The caller
+     * must finish it with [completeComputation], [failComputation] or [compute].
+     * @return deferred to finish, or null if the cached value is still valid, may be returned
+     *         while it is revalidated, or is being computed by another coroutine context.
+     */
+    internal suspend fun claimComputation(): DeferredCache<T>? {
+        while (true) {
+            val deferredResult = raceForDeferred()
+            val deferred = deferredResult.value
+            if (deferredResult is CacheMiss) return deferred
+            if (!deferred.isCompleted) return null
+            val contents = deferred.await()
+            if (!contents.isExpired()) return null
+            if (
+                contents is CacheValue &&
+                config.maxStaleness > Duration.ZERO &&
+                !contents.isExpired(config.refreshDuration + config.maxStaleness)
+            ) {
+                return null
+            }
+            cache.compareAndSet(deferred, null)
+        }
+    }
+
+    /** Finish a computation claimed with [claimComputation] with [value]. */
+    internal fun completeComputation(deferred: DeferredCache<T>, value: T) {
+        deferred.complete(CacheValue(value, config.timeSource.markNow()))
+    }
+
+    /** Finish a computation claimed with [claimComputation] with [exception]. */
+    internal fun failComputation(deferred: DeferredCache<T>, exception: Throwable) {
+        deferred.complete(CacheError(exception, config.timeSource.markNow()))
+    }
+
+    /**
+     * Finish a computation claimed with [claimComputation] by computing the value in this
+     * context. An exception is cached and not rethrown, unless the computation was cancelled.
+     */
+    internal suspend fun compute(deferred: DeferredCache<T>) {
+        try {
+            deferred.computeAndCache()
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Throwable) {
+            // cached
+        }
+    }
+
     private suspend fun DeferredCache<T>.computeAndCache(): T {
         val result = try {
             val value = supplier()
-            complete(CacheValue(value))
+            complete(CacheValue(value, config.timeSource.markNow()))
             value
         } catch (ex: Throwable) {
-            complete(CacheError(ex))
+            complete(CacheError(ex, config.timeSource.markNow()))
             throw ex
         }
         return result
@@ -155,6 +213,14 @@ open class CachedValue<T>(
     ): CacheResult<R> {
         val result = await().map(transform)
         return if (result.isExpired(evaluateValid)) {
+            if (
+                result is CacheValue &&
+                config.maxStaleness > Duration.ZERO &&
+                !result.isExpired(config.refreshDuration + config.maxStaleness)
+            ) {
+                revalidate(this)
+                return CacheHit(result.value)
+            }
             // Either no new coroutine context had updated the cache value, then update it to
             // null. Otherwise, another suspend context is active and get() will await the
             // result from that context
@@ -166,6 +232,34 @@ open class CachedValue<T>(
         }
     }
 
+    /**
+     * Recompute the value of [deferred] in [CacheConfig.revalidateScope], unless it is already
+     * being recomputed. The result replaces [deferred] in cache, if it was not replaced in the
+     * meantime. If the computation fails, [deferred] is kept, so the stale value is still
+     * returned until it exceeds [CacheConfig.maxStaleness], and the computation is retried after
+     * [CacheConfig.exceptionCacheDuration].
+     */
+    private fun revalidate(deferred: DeferredCache<T>) {
+        val scope = config.revalidateScope ?: return
+        if (revalidateRetryAt?.hasPassedNow() == false) return
+        if (!isRevalidating.compareAndSet(false, true)) return
+        scope.launch {
+            val value = try {
+                supplier()
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Throwable) {
+                revalidateRetryAt = config.timeSource.markNow() + config.exceptionCacheDuration
+                return@launch
+            }
+            revalidateRetryAt = null
+            cache.compareAndSet(deferred, CompletableDeferred(CacheValue(value, config.timeSource.markNow())))
+        }.invokeOnCompletion {
+            // also reset if the scope was already cancelled and the coroutine did not start
+            isRevalidating.set(false)
+        }
+    }
+
     /**
      * Race for the first suspend context to create a CompletableDeferred object. All other contexts
      * will use that context to read their values.
@@ -221,7 +315,8 @@ open class CachedValue<T>(
     class CacheError<T>
     internal constructor(
         val exception: Throwable,
-    ) : CacheContents<T>() {
+        time: TimeMark? = null,
+    ) : CacheContents<T>(time) {
         override fun isExpired(age: Duration): Boolean = exception is CancellationException ||
             super.isExpired(age)
 
@@ -15,6 +15,7 @@ import kotlinx.coroutines.runInterruptible
 import kotlinx.coroutines.sync.Semaphore
 import java.util.concurrent.Future
 import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.coroutines.CoroutineContext
 import kotlin.coroutines.EmptyCoroutineContext
 import kotlin.time.Duration
@@ -82,6 +83,66 @@ suspend inline fun <T> Iterable<T>.launchJoin(
     forEach { t -> launch(coroutineContext) { transform(t) } }
 }
 
+/**
+ * Transform each value in the iterable with at most [parallelism] coroutines at a time and await
+ * termination. Values are distributed over the coroutines as they become available, so no
+ * coroutine is started per value. If a transformation fails, all other transformations are
+ * cancelled and the exception is rethrown.
+ * @return transformed values, in the same order as the original values.
+ */
+suspend fun <T, R> Iterable<T>.forkJoin(
+    parallelism: Int,
+    coroutineContext: CoroutineContext = Dispatchers.Default,
+    transform: suspend CoroutineScope.(T) -> R,
+): List<R> {
+    val values = toList()
+    val results = arrayOfNulls<Any?>(values.size)
+    values.launchWorkers(parallelism, coroutineContext) { index, value ->
+        results[index] = transform(value)
+    }
+    @Suppress("UNCHECKED_CAST")
+    return results.asList() as List<R>
+}
+
+/**
+ * Launch each value in the iterable with at most [parallelism] coroutines at a time and await
+ * termination. Values are distributed over the coroutines as they become available, so no
+ * coroutine is started per value. If a transformation fails, all other transformations are
+ * cancelled and the exception is rethrown.
+ */
+suspend fun <T> Iterable<T>.launchJoin(
+    parallelism: Int,
+    coroutineContext: CoroutineContext = EmptyCoroutineContext,
+    transform: suspend CoroutineScope.(T) -> Unit,
+) {
+    toList().launchWorkers(parallelism, coroutineContext) { _, value -> transform(value) }
+}
+
+/**
+ * Launch [parallelism] coroutines that each take the next value from the list and run [block] on
+ * it, until all values are processed.
+ */
+private suspend fun <T> List<T>.launchWorkers(
+    parallelism: Int,
+    coroutineContext: CoroutineContext,
+    block: suspend CoroutineScope.(Int, T) -> Unit,
+) {
+    require(parallelism > 0) { "Parallelism $parallelism must be positive" }
+    if (isEmpty()) return
+    val nextIndex = AtomicInteger(0)
+    coroutineScope {
+        repeat(minOf(parallelism, size)) {
+            launch(coroutineContext) {
+                while (true) {
+                    val index = nextIndex.getAndIncrement()
+                    if (index >= size) break
+                    block(index, get(index))
+                }
+            }
+        }
+    }
+}
+
 /**
  * Consume the first value produced by the producer on its provided channel. Once a value is sent
  * by the producer, its coroutine is cancelled.
@@ -0,0 +1,129 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+
+/**
+ * Update of a map that is loaded incrementally, see [CachedMap.incremental].
+ */
+sealed interface MapUpdate<K, V> {
+    /** Version token of the map after this update. */
+    val version: String
+
+    /** Complete contents of the map. */
+    data class Full<K, V>(
+        val values: Map<K, V>,
+        override val version: String,
+    ) : MapUpdate<K, V>
+
+    /**
+     * Changes since the previous version of the map. A key should not be both updated and
+     * removed; if it is, it is removed.
+     */
+    data class Delta<K, V>(
+        val updated: Map<K, V>,
+        val removed: Set<K>,
+        override val version: String,
+    ) : MapUpdate<K, V>
+}
+
+/**
+ * Supplier of a map that applies updates from [fetch] to the previously loaded map. [fetch] is
+ * called with the version of the previously loaded map, or null if there is none, in which case
+ * it must return a [MapUpdate.Full].
+ */
+internal class IncrementalMapSupplier<K, V>(
+    private val fetch: suspend (version: String?) -> MapUpdate<K, V>,
+) {
+    private val mutex = Mutex()
+    private var current: Map<K, V>? = null
+    private var version: String? = null
+
+    suspend fun get(): Map<K, V> = mutex.withLock {
+        val update = fetch(version)
+        val map = when (update) {
+            is MapUpdate.Full -> update.values
+            is MapUpdate.Delta -> {
+                val previous = checkNotNull(current) { "Cannot apply map delta without a full map" }
+                previous.withChanges(update.updated, update.removed)
+            }
+        }
+        current = map
+        version = update.version
+        map
+    }
+}
+
+/**
+ * Apply changes to a map, without modifying the map itself. Unless the changes are large
+ * compared to the map, the result shares the entries of the unchanged map.
+ */
+internal fun <K, V> Map<K, V>.withChanges(updated: Map<K, V>, removed: Set<K>): Map<K, V> {
+    if (updated.isEmpty() && removed.isEmpty()) return this
+    val base: Map<K, V>
+    val previousUpdated: Map<K, V>
+    val previousRemoved: Set<K>
+    if (this is OverlayMap) {
+        base = this.base
+        previousUpdated = this.updated
+        previousRemoved = this.removed
+    } else {
+        base = this
+        previousUpdated = emptyMap()
+        previousRemoved = emptySet()
+    }
+    val newUpdated = HashMap<K, V>(previousUpdated)
+    newUpdated.putAll(updated)
+    removed.forEach { newUpdated.remove(it) }
+
+    val newRemoved = HashSet<K>(previousRemoved)
+    newRemoved.removeAll(updated.keys)
+    removed.forEach { if (it in base) newRemoved += it }
+
+    return if ((newUpdated.size + newRemoved.size) * OverlayMap.COMPACT_RATIO > base.size) {
+        HashMap<K, V>(base).apply {
+            newRemoved.forEach { remove(it) }
+            putAll(newUpdated)
+        }
+    } else {
+        OverlayMap(base, newUpdated, newRemoved)
+    }
+}
+
+/**
+ * Read-only map of [base] with [updated] entries replaced or added and [removed] keys removed.
+ * [removed] contains only keys of [base] that are not in [updated].
+ */
+internal class OverlayMap<K, V>(
+    val base: Map<K, V>,
+    val updated: Map<K, V>,
+    val removed: Set<K>,
+) : AbstractMap<K, V>() {
+    override val size: Int = base.size - removed.size + updated.keys.count { it !in base }
+
+    override fun containsKey(key: K): Boolean = key in updated || (key !in removed && key in base)
+
+    override fun get(key: K): V? = when {
+        key in updated -> updated[key]
+        key in removed -> null
+        else -> base[key]
+    }
+
+    override val entries: Set<Map.Entry<K, V>> = object : AbstractSet<Map.Entry<K, V>>() {
+        override val size: Int
+            get() = this@OverlayMap.size
+
+        override fun iterator(): Iterator<Map.Entry<K, V>> = (
+            base.entries.asSequence().filter { it.key !in updated && it.key !in removed } +
+                updated.entries.asSequence()
+            ).iterator()
+    }
+
+    companion object {
+        /**
+         * The overlay is merged into a new map when the number of changes exceeds the map
+         * size divided by this ratio.
+         */
+        const val COMPACT_RATIO = 8
+    }
+}
@@ -1,22 +1,62 @@
 package org.radarbase.kotlin.coroutines.flow
 
+import kotlinx.coroutines.async
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.coroutineScope
 import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.buffer
 import kotlinx.coroutines.flow.combine
+import kotlinx.coroutines.flow.flow
 import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.flow.map
 import kotlinx.coroutines.flow.zip
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import kotlinx.coroutines.sync.withPermit
 
 /**
  * Convert a list of flows to one flow with a list of values. The list contains the latest value of
  * each respective flow, in the same order as the original flows. One value is produced when all
- * flows produce a new value.
+ * flows produce a new value. The resulting flow completes when any of the flows completes.
  */
-fun <T> List<Flow<T>>.zipAll(): Flow<List<T>> = when (val numberOfFlows = size) {
+fun <T> List<Flow<T>>.zipAll(): Flow<List<T>> = when (size) {
     0 -> flowOf(listOf())
     1 -> first().map { listOf(it) }
     2 -> first().zip(last()) { a, b -> listOf(a, b) }
-    else -> subList(0, numberOfFlows - 1).zipAll()
-        .zip(last()) { rest, last -> rest + last }
+    else -> zipChannels()
+}
+
+/**
+ * Zip any number of flows by collecting each flow into its own channel, and receiving one value
+ * from each channel per emitted list.
+ */
+private fun <T> List<Flow<T>>.zipChannels(): Flow<List<T>> = flow {
+    coroutineScope {
+        val channels = List(size) { Channel<T>() }
+        val producers = mapIndexed { index, flow ->
+            val channel = channels[index]
+            launch {
+                try {
+                    flow.collect { channel.send(it) }
+                } finally {
+                    channel.close()
+                }
+            }
+        }
+        try {
+            while (true) {
+                val values = ArrayList<T>(channels.size)
+                for (channel in channels) {
+                    val result = channel.receiveCatching()
+                    if (result.isClosed) return@coroutineScope
+                    values.add(result.getOrThrow())
+                }
+                emit(values)
+            }
+        } finally {
+            producers.forEach { it.cancel() }
+        }
+    }
 }
 
 /**
@@ -34,3 +74,23 @@ inline fun <reified T> List<Flow<T>>.combine(): Flow<List<T>> = when (size) {
     1 -> get(0).map { listOf(it) }
     else -> combine(this) { it.toList() }
 }
+
+/**
+ * Transform each value of the flow in a separate coroutine, with at most [concurrency]
+ * transformations running at a time. Values are emitted in the same order as the original flow.
+ * If a transformation fails, the other transformations are cancelled and the flow fails.
+ */
+fun <T, R> Flow<T>.mapConcurrently(
+    concurrency: Int,
+    transform: suspend (T) -> R,
+): Flow<R> {
+    require(concurrency > 0) { "Concurrency $concurrency must be positive" }
+    return flow {
+        coroutineScope {
+            val semaphore = Semaphore(concurrency)
+            this@mapConcurrently.map { value -> async { semaphore.withPermit { transform(value) } } }
+                .buffer(concurrency)
+                .collect { emit(it.await()) }
+        }
+    }
+}
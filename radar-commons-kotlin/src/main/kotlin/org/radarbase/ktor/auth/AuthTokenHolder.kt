@@ -1,6 +1,9 @@
 package org.radarbase.ktor.auth
 
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
 import java.util.concurrent.atomic.AtomicReference
 
 internal class AuthTokenHolder<T>(
@@ -15,37 +18,67 @@ internal class AuthTokenHolder<T>(
     }
 
     internal suspend fun loadToken(): T? {
-        var deferred: CompletableDeferred<T?>?
-        do {
-            deferred = loadTokensDeferred.get()
-            val newValue = deferred ?: CompletableDeferred()
-        } while (!loadTokensDeferred.compareAndSet(deferred, newValue))
+        while (true) {
+            var deferred: CompletableDeferred<T?>?
+            var newValue: CompletableDeferred<T?>
+            do {
+                deferred = loadTokensDeferred.get()
+                newValue = deferred ?: CompletableDeferred()
+            } while (!loadTokensDeferred.compareAndSet(deferred, newValue))
 
-        return if (deferred != null) {
-            deferred.await()
-        } else {
-            val newTokens = loadTokens()
-            loadTokensDeferred.get()!!.complete(newTokens)
-            newTokens
+            if (deferred == null) {
+                // A failed or cancelled load must not leave other contexts waiting
+                return try {
+                    loadTokens().also { newValue.complete(it) }
+                } catch (ex: Throwable) {
+                    // reset first, so that waiting contexts that retry start a new load
+                    loadTokensDeferred.compareAndSet(newValue, null)
+                    newValue.completeExceptionally(ex)
+                    throw ex
+                }
+            } else {
+                try {
+                    return deferred.await()
+                } catch (ex: CancellationException) {
+                    // the context that was loading was cancelled, so load in this one
+                    currentCoroutineContext().ensureActive()
+                }
+            }
         }
     }
 
     internal suspend fun setToken(block: suspend () -> T?): T? {
-        var deferred: CompletableDeferred<T?>?
-        do {
-            deferred = refreshTokensDeferred.get()
-            val newValue = deferred ?: CompletableDeferred()
-        } while (!refreshTokensDeferred.compareAndSet(deferred, newValue))
+        while (true) {
+            var deferred: CompletableDeferred<T?>?
+            var newValue: CompletableDeferred<T?>
+            do {
+                deferred = refreshTokensDeferred.get()
+                newValue = deferred ?: CompletableDeferred()
+            } while (!refreshTokensDeferred.compareAndSet(deferred, newValue))
 
-        val newToken = if (deferred == null) {
-            val newTokens = block()
-            refreshTokensDeferred.get()!!.complete(newTokens)
-            refreshTokensDeferred.set(null)
-            newTokens
-        } else {
-            deferred.await()
+            val newToken = if (deferred == null) {
+                // A failed or cancelled refresh must not leave other contexts waiting
+                try {
+                    block().also { newValue.complete(it) }
+                } catch (ex: Throwable) {
+                    // reset first, so that waiting contexts that retry start a new refresh
+                    refreshTokensDeferred.compareAndSet(newValue, null)
+                    newValue.completeExceptionally(ex)
+                    throw ex
+                } finally {
+                    refreshTokensDeferred.compareAndSet(newValue, null)
+                }
+            } else {
+                try {
+                    deferred.await()
+                } catch (ex: CancellationException) {
+                    // the context that was refreshing was cancelled, so refresh in this one
+                    currentCoroutineContext().ensureActive()
+                    continue
+                }
+            }
+            loadTokensDeferred.set(CompletableDeferred(newToken))
+            return newToken
         }
-        loadTokensDeferred.set(CompletableDeferred(newToken))
-        return newToken
     }
 }
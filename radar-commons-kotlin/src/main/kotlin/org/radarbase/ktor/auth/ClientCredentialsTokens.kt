@@ -0,0 +1,240 @@
+package org.radarbase.ktor.auth
+
+import io.ktor.client.HttpClient
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.job
+import kotlinx.coroutines.launch
+import org.slf4j.LoggerFactory
+import java.lang.ref.WeakReference
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeSource
+
+/**
+ * Tokens of a [ClientCredentialsAuthProvider]. Tokens are requested by [requestToken] and
+ * refreshed in the background when [refreshFraction] of their lifetime has passed. An instance
+ * may be shared by providers of multiple clients, see [shared]. Tokens are requested with any of
+ * the attached clients that have not been closed. A client is attached when it is created with
+ * [installClientCredentials], or otherwise when it first refreshes a token. Background refreshes
+ * start when a token is loaded or requested while a client is attached, and stop when all
+ * attached clients have been closed.
+ *
+ * @param timeSource time source to determine token expiry with.
+ * @param refreshScope scope to refresh tokens in the background in.
+ */
+internal class ClientCredentialsTokens(
+    private val requestToken: suspend RequestTokenParams.() -> OAuth2AccessToken?,
+    loadTokens: suspend () -> OAuth2AccessToken?,
+    private val refreshFraction: Double?,
+    private val saveTokens: suspend (OAuth2AccessToken) -> Unit = {},
+    private val timeSource: TimeSource = TimeSource.Monotonic,
+    private val refreshScope: CoroutineScope = CoroutineScope(SupervisorJob() + Dispatchers.Default),
+) {
+    init {
+        require(refreshFraction == null || refreshFraction > 0.0 && refreshFraction < 1.0) {
+            "Token refresh fraction $refreshFraction must be between 0 and 1"
+        }
+    }
+
+    private val tokensHolder = AuthTokenHolder {
+        val token = try {
+            loadTokens()
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Exception) {
+            // request a new token instead
+            logger.warn("Failed to load token: {}", ex.toString())
+            null
+        }?.let { ExpiringAccessToken(it, timeSource.markNow(), refreshFraction) }
+        // a stored token must be refreshed before it expires, not only after a request fails
+        if (token != null && clients.isNotEmpty()) {
+            startRefreshJob()
+        }
+        token
+    }
+    private val clients: MutableSet<HttpClient> = ConcurrentHashMap.newKeySet()
+    private val refreshJob = AtomicReference<Job?>(null)
+
+    /** Last requested token, if it has not been saved yet. */
+    private val unsavedToken = AtomicReference<OAuth2AccessToken?>(null)
+
+    /** Last requested token. */
+    val tokenFlow = MutableStateFlow<OAuth2AccessToken?>(null)
+
+    /**
+     * Get a token that has not expired. An expired token is refreshed first, if an attached
+     * client is still open.
+     * @return token or null if no valid token is available.
+     */
+    suspend fun validToken(): ExpiringAccessToken? {
+        val token = tokensHolder.loadToken() ?: return null
+        if (!token.isExpired()) return token
+        // Without a client, the request is sent unauthorized and the token is refreshed by
+        // ClientCredentialsAuthProvider.refreshToken.
+        val client = activeClient() ?: return null
+        return setFetchedToken { fetchToken(client) }
+    }
+
+    /**
+     * Request a new token with [client]. Concurrent calls share the same request.
+     * @return whether a new token was obtained.
+     */
+    suspend fun refresh(client: HttpClient): Boolean {
+        attach(client)
+        val newToken = setFetchedToken { fetchToken(client) }
+        if (newToken != null) {
+            startRefreshJob()
+        }
+        return newToken != null
+    }
+
+    fun clear() {
+        refreshJob.getAndSet(null)?.cancel()
+        tokensHolder.clearToken()
+    }
+
+    /** Use [client] to request tokens until it is closed. */
+    fun attach(client: HttpClient) {
+        if (clients.add(client)) {
+            client.coroutineContext.job.invokeOnCompletion { detach(client) }
+        }
+    }
+
+    private fun detach(client: HttpClient) {
+        clients.remove(client)
+        if (clients.isEmpty()) {
+            refreshJob.getAndSet(null)?.cancel()
+        }
+    }
+
+    /** Client to request tokens with, or null if all known clients have been closed. */
+    private fun activeClient(): HttpClient? = clients.firstOrNull { it.isActive }
+
+    private suspend fun fetchToken(client: HttpClient): ExpiringAccessToken? {
+        val token = requestToken(RequestTokenParams(client))
+        tokenFlow.value = token
+        token?.let { unsavedToken.set(it) }
+        return token?.let { ExpiringAccessToken(it, timeSource.markNow(), refreshFraction) }
+    }
+
+    /**
+     * Set the token computed by [block] and save a newly requested token afterwards, so that
+     * saving it does not delay other contexts that wait for the token.
+     */
+    private suspend fun setFetchedToken(block: suspend () -> ExpiringAccessToken?): ExpiringAccessToken? {
+        val token = tokensHolder.setToken(block)
+        val unsaved = unsavedToken.getAndSet(null) ?: return token
+        try {
+            saveTokens(unsaved)
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Throwable) {
+            logger.warn("Failed to save token: {}", ex.toString())
+        }
+        return token
+    }
+
+    /**
+     * Request a new token with [client]. If that fails, [current] is kept as long as it has not
+     * expired, so that a failed background refresh does not fail the scope it runs in.
+     */
+    private suspend fun fetchTokenOrKeep(client: HttpClient, current: ExpiringAccessToken): ExpiringAccessToken? {
+        val token = try {
+            fetchToken(client)
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Exception) {
+            logger.warn("Failed to refresh token: {}", ex.toString())
+            null
+        }
+        return token ?: current.takeUnless { it.isExpired() }
+    }
+
+    /**
+     * Start refreshing tokens in the background, if this is not already running. The job stops
+     * when there is no token, the token does not expire or no client is open anymore.
+     */
+    private fun startRefreshJob() {
+        val refreshFraction = refreshFraction ?: return
+        if (refreshJob.get() != null) return
+        val job = refreshScope.launch(start = CoroutineStart.LAZY) {
+            try {
+                while (true) {
+                    val token = tokensHolder.loadToken() ?: break
+                    val untilRefresh = token.untilRefresh(refreshFraction) ?: break
+                    if (untilRefresh.isPositive()) {
+                        delay(untilRefresh)
+                        continue
+                    }
+                    val client = activeClient() ?: break
+                    // keep the current token if it cannot be refreshed yet
+                    val newToken = try {
+                        setFetchedToken {
+                            // a request may have refreshed the token in the meantime
+                            tokensHolder.loadToken()?.takeIf { it !== token }
+                                ?: fetchTokenOrKeep(client, token)
+                        }
+                    } catch (ex: CancellationException) {
+                        throw ex
+                    } catch (ex: Exception) {
+                        // a concurrent refresh by a request failed
+                        token.takeUnless { it.isExpired() }
+                    } ?: break
+                    if (newToken === token) {
+                        delay(REFRESH_RETRY_DELAY)
+                    }
+                }
+            } finally {
+                refreshJob.compareAndSet(coroutineContext.job, null)
+            }
+        }
+        if (refreshJob.compareAndSet(null, job)) {
+            job.start()
+        } else {
+            job.cancel()
+        }
+    }
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(ClientCredentialsTokens::class.java)
+
+        private val REFRESH_RETRY_DELAY = 10.seconds
+
+        /**
+         * Shared tokens by key. Providers reference their tokens, so tokens are released once
+         * no provider uses them anymore.
+         */
+        private val sharedTokens = ConcurrentHashMap<Any, WeakReference<ClientCredentialsTokens>>()
+
+        /**
+         * Get the tokens shared by all providers with the same [key], creating them with
+         * [create] if no provider uses the key.
+         */
+        fun shared(key: Any, create: () -> ClientCredentialsTokens): ClientCredentialsTokens {
+            sharedTokens.values.removeIf { it.get() == null }
+            var tokens: ClientCredentialsTokens? = null
+            sharedTokens.compute(key) { _, ref ->
+                tokens = ref?.get()
+                ref.takeIf { tokens != null } ?: WeakReference(create().also { tokens = it })
+            }
+            return checkNotNull(tokens)
+        }
+
+        /** Clear and remove all shared tokens. */
+        fun clearShared() {
+            sharedTokens.values.removeIf { ref ->
+                ref.get()?.clear()
+                true
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
+import kotlinx.serialization.SerializationException
+import kotlinx.serialization.Serializable
+import kotlinx.serialization.decodeFromString
+import kotlinx.serialization.encodeToString
+import kotlinx.serialization.json.Json
+import org.slf4j.LoggerFactory
+import java.io.IOException
+import java.nio.file.FileAlreadyExistsException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.attribute.FileAttribute
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.GeneralSecurityException
+import java.security.SecureRandom
+import java.time.Clock
+import javax.crypto.Cipher
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.coroutines.CoroutineContext
+
+/**
+ * Token store that keeps the last token in a file, encrypted with AES-GCM. The encryption key is
+ * generated on first use and stored in [keyPath]. On POSIX file systems, both files are only
+ * readable by the owner. Failures to read or write the store are logged and otherwise ignored,
+ * so that a new token is requested instead.
+ *
+ * @param path file to store the token in.
+ * @param keyPath file to store the encryption key in. This should not be shared with other
+ *        processes that can read [path].
+ */
+class EncryptedFileTokenStore(
+    private val path: Path,
+    private val keyPath: Path = path.resolveSibling("${path.fileName}.key"),
+    private val clock: Clock = Clock.systemUTC(),
+    private val ioContext: CoroutineContext = Dispatchers.IO,
+) : TokenStore {
+    private val secureRandom = SecureRandom()
+
+    @Volatile
+    private var cachedKey: ByteArray? = null
+
+    override suspend fun load(): OAuth2AccessToken? = withContext(ioContext) {
+        try {
+            if (!Files.exists(path)) return@withContext null
+            val stored = json.decodeFromString<StoredToken>(
+                decrypt(Files.readAllBytes(path)).decodeToString(),
+            )
+            val token = stored.token
+            if (token.expiresIn <= 0) {
+                token
+            } else {
+                val remaining = token.expiresIn - (clock.instant().epochSecond - stored.receivedAt)
+                if (remaining > 0) token.copy(expiresIn = remaining) else null
+            }
+        } catch (ex: IOException) {
+            logger.warn("Cannot read stored token from {}: {}", path, ex.toString())
+            null
+        } catch (ex: GeneralSecurityException) {
+            logger.warn("Cannot decrypt stored token from {}: {}", path, ex.toString())
+            null
+        } catch (ex: SerializationException) {
+            logger.warn("Cannot parse stored token from {}: {}", path, ex.toString())
+            null
+        }
+    }
+
+    override suspend fun save(token: OAuth2AccessToken) {
+        withContext(ioContext) {
+            saveBlocking(token)
+        }
+    }
+
+    private fun saveBlocking(token: OAuth2AccessToken) {
+        try {
+            val stored = StoredToken(token, clock.instant().epochSecond)
+            writeAtomically(path, encrypt(json.encodeToString(stored).encodeToByteArray()))
+        } catch (ex: IOException) {
+            logger.warn("Cannot store token in {}: {}", path, ex.toString())
+        } catch (ex: GeneralSecurityException) {
+            logger.warn("Cannot encrypt token for {}: {}", path, ex.toString())
+        }
+    }
+
+    private fun encrypt(data: ByteArray): ByteArray {
+        val iv = ByteArray(IV_LENGTH).also { secureRandom.nextBytes(it) }
+        val cipher = Cipher.getInstance(CIPHER).apply {
+            init(Cipher.ENCRYPT_MODE, SecretKeySpec(key(), "AES"), GCMParameterSpec(TAG_BITS, iv))
+        }
+        return iv + cipher.doFinal(data)
+    }
+
+    private fun decrypt(data: ByteArray): ByteArray {
+        if (data.size <= IV_LENGTH) throw IOException("Stored token is truncated")
+        val cipher = Cipher.getInstance(CIPHER).apply {
+            init(Cipher.DECRYPT_MODE, SecretKeySpec(key(), "AES"), GCMParameterSpec(TAG_BITS, data, 0, IV_LENGTH))
+        }
+        return cipher.doFinal(data, IV_LENGTH, data.size - IV_LENGTH)
+    }
+
+    /**
+     * Read the encryption key, or generate it if it does not exist yet. The key file is written
+     * completely before it is published, so it is never read partially. An existing key file is
+     * never replaced: if processes that share [keyPath] generate a key at the same time, all of
+     * them use the key that was published first.
+     */
+    @Synchronized
+    private fun key(): ByteArray {
+        cachedKey?.let { return it }
+        val newKey = if (Files.exists(keyPath)) {
+            readKey()
+        } else {
+            val generatedKey = ByteArray(KEY_LENGTH).also { secureRandom.nextBytes(it) }
+            try {
+                writeNew(keyPath, generatedKey)
+                generatedKey
+            } catch (ex: FileAlreadyExistsException) {
+                // another process published its key first
+                readKey()
+            }
+        }
+        cachedKey = newKey
+        return newKey
+    }
+
+    private fun readKey(): ByteArray = Files.readAllBytes(keyPath).also {
+        if (it.size != KEY_LENGTH) throw IOException("Token store key $keyPath is invalid")
+    }
+
+    @Serializable
+    private data class StoredToken(
+        val token: OAuth2AccessToken,
+        /** Time that the token was received, in seconds since the Unix epoch. */
+        val receivedAt: Long,
+    )
+
+    companion object {
+        private val logger = LoggerFactory.getLogger(EncryptedFileTokenStore::class.java)
+        private val json = Json { ignoreUnknownKeys = true }
+
+        private const val CIPHER = "AES/GCM/NoPadding"
+        private const val KEY_LENGTH = 32
+        private const val IV_LENGTH = 12
+        private const val TAG_BITS = 128
+
+        /** Write [data] to an owner-only temporary file and move it to [path] atomically. */
+        private fun writeAtomically(path: Path, data: ByteArray) {
+            val tmpPath = Files.createTempFile(path.toAbsolutePath().parent, ".${path.fileName}", ".tmp", *ownerOnly(path))
+            try {
+                Files.write(tmpPath, data)
+                Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING)
+            } finally {
+                Files.deleteIfExists(tmpPath)
+            }
+        }
+
+        /**
+         * Write [data] to an owner-only temporary file and publish it at [path] atomically,
+         * unless [path] already exists.
+         * @throws FileAlreadyExistsException if [path] already exists.
+         */
+        private fun writeNew(path: Path, data: ByteArray) {
+            val tmpPath = Files.createTempFile(path.toAbsolutePath().parent, ".${path.fileName}", ".tmp", *ownerOnly(path))
+            try {
+                Files.write(tmpPath, data)
+                try {
+                    // creating a link fails if the path exists, whereas an atomic move may replace it
+                    Files.createLink(path, tmpPath)
+                } catch (ex: FileAlreadyExistsException) {
+                    throw ex
+                } catch (ex: IOException) {
+                    // file system without hard links
+                    Files.move(tmpPath, path)
+                } catch (ex: UnsupportedOperationException) {
+                    Files.move(tmpPath, path)
+                }
+            } finally {
+                Files.deleteIfExists(tmpPath)
+            }
+        }
+
+        private fun isPosix(path: Path): Boolean = "posix" in path.fileSystem.supportedFileAttributeViews()
+
+        private fun ownerOnly(path: Path): Array<FileAttribute<*>> = if (isPosix(path)) {
+            arrayOf(PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+        } else {
+            emptyArray()
+        }
+    }
+}
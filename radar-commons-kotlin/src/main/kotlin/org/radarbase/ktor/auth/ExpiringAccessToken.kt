@@ -0,0 +1,54 @@
+package org.radarbase.ktor.auth
+
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TimeMark
+import kotlin.time.TimeSource
+
+/**
+ * Access token with the time that it was received, to determine when it expires.
+ *
+ * @param refreshFraction fraction of the lifetime after which the token is refreshed in the
+ * background, or null if it is not. The expiry margin stays within the remaining lifetime, so
+ * that the background refresh runs before the token is considered expired.
+ */
+internal class ExpiringAccessToken(
+    val token: OAuth2AccessToken,
+    private val receivedAt: TimeMark = TimeSource.Monotonic.markNow(),
+    refreshFraction: Double? = null,
+) {
+    private val expiresIn: Duration? = if (token.expiresIn > 0) token.expiresIn.seconds else null
+
+    /** Margin before the actual expiry at which the token is considered expired. */
+    private val expiryMargin: Duration = expiresIn
+        ?.let { minOf(EXPIRY_MARGIN, it * (1.0 - (refreshFraction ?: 0.0)) / 2) }
+        ?: Duration.ZERO
+
+    /** Value of the Authorization header, computed once per token. */
+    val authorizationHeader: String = "Bearer ${token.accessToken}"
+
+    /**
+     * Whether the token has expired, or will expire within [EXPIRY_MARGIN]. For short-lived
+     * tokens, the margin is at most half of the lifetime that remains after the background
+     * refresh. A token without expiry time does not expire.
+     */
+    fun isExpired(): Boolean {
+        val expiresIn = expiresIn ?: return false
+        return (receivedAt + (expiresIn - expiryMargin)).hasPassedNow()
+    }
+
+    /**
+     * Time until the token should be refreshed, at [fraction] of its lifetime. This is negative
+     * if the token should already be refreshed.
+     * @return time until refresh, or null if the token does not expire.
+     */
+    fun untilRefresh(fraction: Double): Duration? {
+        val expiresIn = expiresIn ?: return null
+        return -(receivedAt + expiresIn * fraction).elapsedNow()
+    }
+
+    companion object {
+        /** Maximum margin before the actual expiry of a token that it is considered expired. */
+        val EXPIRY_MARGIN = 5.seconds
+    }
+}
@@ -1,15 +1,16 @@
 package org.radarbase.ktor.auth
 
 import io.ktor.client.HttpClient
+import io.ktor.client.HttpClientConfig
 import io.ktor.client.call.body
 import io.ktor.client.plugins.auth.Auth
 import io.ktor.client.plugins.auth.AuthProvider
 import io.ktor.client.plugins.auth.providers.BearerAuthConfig
 import io.ktor.client.plugins.auth.providers.BearerAuthProvider
+import io.ktor.client.plugins.pluginOrNull
 import io.ktor.client.request.HttpRequestBuilder
 import io.ktor.client.request.accept
 import io.ktor.client.request.forms.submitForm
-import io.ktor.client.request.headers
 import io.ktor.client.statement.HttpResponse
 import io.ktor.client.statement.bodyAsText
 import io.ktor.http.ContentType
@@ -21,29 +22,63 @@ import io.ktor.http.auth.HttpAuthHeader
 import io.ktor.http.isSuccess
 import io.ktor.util.KtorDsl
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.asStateFlow
 import org.slf4j.LoggerFactory
+import java.security.MessageDigest
 
 private val logger = LoggerFactory.getLogger(Auth::class.java)
 
+/** Key of the client interceptor that attaches clients to their client credentials tokens. */
+private const val ATTACH_CLIENT_CREDENTIALS = "AttachClientCredentials"
+
 /**
  * Installs the client's [BearerAuthProvider].
  */
 fun Auth.clientCredentials(block: ClientCredentialsAuthConfig.() -> Unit) {
+    clientCredentialsTokens(block)
+}
+
+private fun Auth.clientCredentialsTokens(block: ClientCredentialsAuthConfig.() -> Unit): ClientCredentialsTokens {
     with(ClientCredentialsAuthConfig().apply(block)) {
-        this@clientCredentials.providers.add(ClientCredentialsAuthProvider(_requestToken, _loadTokens, _sendWithoutRequest, realm))
+        val tokens = createTokens()
+        this@clientCredentialsTokens.providers.add(ClientCredentialsAuthProvider(tokens, _sendWithoutRequest, realm))
+        return tokens
     }
 }
 
+/**
+ * Installs a [ClientCredentialsAuthProvider] that requests tokens with given configuration.
+ * @return flow of the last requested token.
+ */
 fun Auth.clientCredentials(
     authConfig: ClientCredentialsConfig,
     targetHost: String? = null,
+): Flow<OAuth2AccessToken?> = clientCredentials(authConfig, targetHost, shareTokens = false)
+
+/**
+ * Installs a [ClientCredentialsAuthProvider] that requests tokens with given configuration.
+ * If [shareTokens] is true, tokens are shared with all other clients that share tokens with an
+ * equal configuration, including the client secret, so they are requested and refreshed only
+ * once. If [tokenStore] is set, tokens are loaded from and saved to it, so they can be reused
+ * after a restart.
+ * @return flow of the last requested token.
+ */
+fun Auth.clientCredentials(
+    authConfig: ClientCredentialsConfig,
+    targetHost: String?,
+    shareTokens: Boolean = false,
+    tokenStore: TokenStore? = null,
 ): Flow<OAuth2AccessToken?> {
     requireNotNull(authConfig.clientId) { "Missing client ID" }
     requireNotNull(authConfig.clientSecret) { "Missing client secret" }
-    val flow = MutableStateFlow<OAuth2AccessToken?>(null)
 
-    clientCredentials {
+    val tokens = clientCredentialsTokens {
+        if (shareTokens) {
+            shareTokens(SharedTokensKey(authConfig))
+        }
+        if (tokenStore != null) {
+            tokenStore(tokenStore)
+        }
         if (targetHost != null) {
             sendWithoutRequest { request ->
                 request.url.host == targetHost
@@ -69,12 +104,52 @@ fun Auth.clientCredentials(
             } else {
                 response.body<OAuth2AccessToken>()
             }
-            flow.value = refreshTokenInfo
             refreshTokenInfo
         }
     }
 
-    return flow
+    return tokens.tokenFlow.asStateFlow()
+}
+
+/**
+ * Installs [Auth] with a [ClientCredentialsAuthProvider] that requests tokens with given
+ * configuration, see [Auth.clientCredentials]. The provider tokens are attached to the client
+ * when it is created, so they are refreshed in the background from the first token on. This
+ * includes a token loaded from [tokenStore], which would otherwise only be refreshed after a
+ * request was unauthorized. Clients derived with [HttpClient.config] are attached as well.
+ */
+fun HttpClientConfig<*>.installClientCredentials(
+    authConfig: ClientCredentialsConfig,
+    targetHost: String? = null,
+    shareTokens: Boolean = false,
+    tokenStore: TokenStore? = null,
+) {
+    install(Auth) {
+        clientCredentials(authConfig, targetHost, shareTokens, tokenStore)
+    }
+    install(ATTACH_CLIENT_CREDENTIALS) {
+        pluginOrNull(Auth)?.providers
+            ?.filterIsInstance<ClientCredentialsAuthProvider>()
+            ?.forEach { it.tokens.attach(this) }
+    }
+}
+
+/**
+ * Key of tokens shared by [clientCredentials]. It contains a hash of the client secret instead
+ * of the secret itself, so the secret is not kept in the shared tokens map.
+ */
+internal data class SharedTokensKey(
+    val config: ClientCredentialsConfig,
+    val clientSecretHash: String?,
+) {
+    constructor(config: ClientCredentialsConfig) : this(
+        config.copy(clientSecret = null),
+        config.clientSecret?.let { secret ->
+            MessageDigest.getInstance("SHA-256")
+                .digest(secret.toByteArray())
+                .joinToString("") { "%02x".format(it) }
+        },
+    )
 }
 
 /**
@@ -99,9 +174,18 @@ class ClientCredentialsAuthConfig {
     internal var _requestToken: suspend RequestTokenParams.() -> OAuth2AccessToken? = { null }
     internal var _loadTokens: suspend () -> OAuth2AccessToken? = { null }
     internal var _sendWithoutRequest: (HttpRequestBuilder) -> Boolean = { true }
+    internal var _saveTokens: suspend (OAuth2AccessToken) -> Unit = {}
+    internal var _sharedTokensKey: Any? = null
 
     var realm: String? = null
 
+    /**
+     * Fraction of the token lifetime after which a new token is requested in the background.
+     * Set to null to only request a new token when a request is unauthorized or the token has
+     * expired.
+     */
+    var refreshFraction: Double? = DEFAULT_REFRESH_FRACTION
+
     /**
      * Configures a callback that refreshes a token when the 401 status code is received.
      */
@@ -117,12 +201,49 @@ class ClientCredentialsAuthConfig {
         _loadTokens = block
     }
 
+    /**
+     * Configures a callback that stores each newly requested token in a local storage.
+     */
+    fun saveTokens(block: suspend (OAuth2AccessToken) -> Unit) {
+        _saveTokens = block
+    }
+
+    /**
+     * Load tokens from and save tokens to [store], for example an [EncryptedFileTokenStore].
+     * A loaded token is only refreshed in the background if the client is attached, see
+     * [installClientCredentials].
+     */
+    fun tokenStore(store: TokenStore) {
+        loadTokens(store::load)
+        saveTokens(store::save)
+    }
+
     /**
      * Sends credentials without waiting for [HttpStatusCode.Unauthorized].
      */
     fun sendWithoutRequest(block: (HttpRequestBuilder) -> Boolean) {
         _sendWithoutRequest = block
     }
+
+    /**
+     * Share tokens with all providers in this process that are configured with an equal [key].
+     * Only the token callbacks of the first provider with that key are used.
+     */
+    fun shareTokens(key: Any) {
+        _sharedTokensKey = key
+    }
+
+    internal fun createTokens(): ClientCredentialsTokens {
+        val key = _sharedTokensKey
+            ?: return ClientCredentialsTokens(_requestToken, _loadTokens, refreshFraction, _saveTokens)
+        return ClientCredentialsTokens.shared(key) {
+            ClientCredentialsTokens(_requestToken, _loadTokens, refreshFraction, _saveTokens)
+        }
+    }
+
+    companion object {
+        const val DEFAULT_REFRESH_FRACTION = 0.8
+    }
 }
 
 /**
@@ -132,21 +253,33 @@ class ClientCredentialsAuthConfig {
  * by using external providers, such as Google, Facebook, Twitter, and so on.
  *
  * You can learn more from [Bearer authentication](https://ktor.io/docs/bearer-client.html).
+ *
+ * Once a token is requested, a new token is requested in the background when the configured
+ * fraction of its lifetime has passed, until the client is closed. Expired tokens are never sent.
  */
-class ClientCredentialsAuthProvider(
-    private val requestToken: suspend RequestTokenParams.() -> OAuth2AccessToken?,
-    loadTokens: suspend () -> OAuth2AccessToken?,
-    private val sendWithoutRequestCallback: (HttpRequestBuilder) -> Boolean = { true },
+class ClientCredentialsAuthProvider
+internal constructor(
+    internal val tokens: ClientCredentialsTokens,
+    private val sendWithoutRequestCallback: (HttpRequestBuilder) -> Boolean,
     private val realm: String?,
 ) : AuthProvider {
+    constructor(
+        requestToken: suspend RequestTokenParams.() -> OAuth2AccessToken?,
+        loadTokens: suspend () -> OAuth2AccessToken?,
+        sendWithoutRequestCallback: (HttpRequestBuilder) -> Boolean = { true },
+        realm: String?,
+        refreshFraction: Double? = ClientCredentialsAuthConfig.DEFAULT_REFRESH_FRACTION,
+    ) : this(
+        ClientCredentialsTokens(requestToken, loadTokens, refreshFraction),
+        sendWithoutRequestCallback,
+        realm,
+    )
 
     @Suppress("OverridingDeprecatedMember")
     @Deprecated("Please use sendWithoutRequest function instead", replaceWith = ReplaceWith("sendWithoutRequest(request)"))
     override val sendWithoutRequest: Boolean
         get() = error("Deprecated")
 
-    private val tokensHolder = AuthTokenHolder(loadTokens)
-
     override fun sendWithoutRequest(request: HttpRequestBuilder): Boolean = sendWithoutRequestCallback(request)
 
     /**
@@ -164,24 +297,24 @@ class ClientCredentialsAuthProvider(
      * Adds an authentication method headers and credentials.
      */
     override suspend fun addRequestHeaders(request: HttpRequestBuilder, authHeader: HttpAuthHeader?) {
-        val token = tokensHolder.loadToken() ?: return
-
-        request.headers {
-            if (contains(HttpHeaders.Authorization)) {
-                remove(HttpHeaders.Authorization)
-            }
-            append(HttpHeaders.Authorization, "Bearer ${token.accessToken}")
-        }
+        // a token request must not wait for the refresh that it is part of
+        if (request.attributes.contains(Auth.AuthCircuitBreaker)) return
+        val token = tokens.validToken() ?: return
+        // set replaces any existing values in place
+        request.headers[HttpHeaders.Authorization] = token.authorizationHeader
     }
 
-    override suspend fun refreshToken(response: HttpResponse): Boolean {
-        val newToken = tokensHolder.setToken {
-            requestToken(RequestTokenParams(response.call.client))
-        }
-        return newToken != null
-    }
+    override suspend fun refreshToken(response: HttpResponse): Boolean = tokens.refresh(response.call.client)
 
+    /** Clear the token. If the token is shared, it is cleared for all providers that share it. */
     fun clearToken() {
-        tokensHolder.clearToken()
+        tokens.clear()
+    }
+
+    companion object {
+        /** Clear all tokens that are shared between providers. */
+        fun clearSharedTokens() {
+            ClientCredentialsTokens.clearShared()
+        }
     }
 }
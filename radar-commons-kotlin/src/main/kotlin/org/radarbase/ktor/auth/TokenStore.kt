@@ -0,0 +1,17 @@
+package org.radarbase.ktor.auth
+
+/**
+ * Storage of OAuth 2.0 tokens, so that they can be reused after a restart. Use it with
+ * [ClientCredentialsAuthConfig.tokenStore].
+ */
+interface TokenStore {
+    /**
+     * Load the stored token. The [OAuth2AccessToken.expiresIn] field of the returned token
+     * should contain the remaining lifetime of the token.
+     * @return stored token, or null if there is no valid stored token.
+     */
+    suspend fun load(): OAuth2AccessToken?
+
+    /** Store a token that was just received. */
+    suspend fun save(token: OAuth2AccessToken)
+}
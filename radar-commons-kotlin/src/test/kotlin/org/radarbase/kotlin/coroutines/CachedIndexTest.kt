@@ -0,0 +1,55 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+
+internal class CachedIndexTest {
+    private val config = CacheConfig(
+        refreshDuration = 40.milliseconds,
+        retryDuration = 20.milliseconds,
+    )
+
+    @Test
+    fun mapIndex() {
+        val calls = AtomicInteger(0)
+        val cache = CachedMap(config) {
+            val call = calls.incrementAndGet()
+            (1..call).associate { "user$it" to User(id = "user$it", project = "project${it % 2}") }
+        }
+        val byProject = cache.indexBy { it.project }
+
+        runBlocking {
+            assertThat(byProject.find("project1"), equalTo(User("user1", "project1")))
+            assertThat("Index is not refreshed within threshold", byProject.contains("project0"), `is`(false))
+            delay(22.milliseconds)
+            assertThat("Missing value triggers retry", byProject.find("project0"), equalTo(User("user2", "project0")))
+            assertThat("First value is kept", byProject.find("project1"), equalTo(User("user1", "project1")))
+            assertThat(byProject.find("project2"), nullValue())
+        }
+        assertThat(calls.get(), `is`(2))
+    }
+
+    @Test
+    fun setIndex() {
+        val cache = CachedSet(config) { setOf(User("a", "p"), User("b", "q")) }
+        val byId = cache.indexBy { it.id }
+
+        runBlocking {
+            assertThat(byId.find("b"), equalTo(User("b", "q")))
+            assertThat(byId.contains("a"), `is`(true))
+            assertThat(byId.contains("c"), `is`(false))
+            cache.set(setOf(User("c", "r")))
+            assertThat("Index is rebuilt after update", byId.contains("c"), `is`(true))
+            assertThat(byId.contains("a"), `is`(false))
+        }
+    }
+
+    private data class User(val id: String, val project: String)
+}
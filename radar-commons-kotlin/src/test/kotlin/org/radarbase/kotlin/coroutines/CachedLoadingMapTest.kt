@@ -0,0 +1,160 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+
+internal class CachedLoadingMapTest {
+    private lateinit var config: CacheConfig
+
+    private val calls: AtomicInteger = AtomicInteger(0)
+
+    @BeforeEach
+    fun setUp() {
+        calls.set(0)
+        config = CacheConfig(
+            refreshDuration = 40.milliseconds,
+            retryDuration = 20.milliseconds,
+            exceptionCacheDuration = 20.milliseconds,
+        )
+    }
+
+    @Test
+    fun get() {
+        val cache = CachedLoadingMap<String, String>(config) { "$it${calls.incrementAndGet()}" }
+        runBlocking {
+            assertThat("Initial value should load", cache.get("a"), `is`("a1"))
+            assertThat("Other key should load", cache.get("b"), `is`("b2"))
+            assertThat("No refresh within threshold", cache.get("a"), `is`("a1"))
+            delay(42.milliseconds)
+            assertThat("Refresh after threshold", cache.get("a"), `is`("a3"))
+        }
+        assertThat(cache.stats, equalTo(CachedLoadingMap.Stats(hitCount = 1, missCount = 3, evictionCount = 0)))
+    }
+
+    @Test
+    fun getMultithreaded() {
+        val cache = CachedLoadingMap<Int, Int>(config) {
+            calls.incrementAndGet()
+            delay(100.milliseconds)
+            it
+        }
+
+        runBlocking {
+            val values = (0..11).forkJoin { cache.get(it % 2) }
+            assertThat(values, equalTo(List(12) { it % 2 }))
+        }
+
+        assertThat("One load per key", calls.get(), `is`(2))
+    }
+
+    @Test
+    fun evict() {
+        val cache = CachedLoadingMap<Int, Int>(config, maxSize = 2) { calls.incrementAndGet() }
+
+        runBlocking {
+            cache.get(1)
+            cache.get(2)
+            cache.get(1)
+            cache.get(3)
+            assertThat(cache.size, `is`(2))
+            assertThat("Recently used key is kept", cache.getIfPresent(1), `is`(1))
+            assertThat("Least recently used key is evicted", cache.getIfPresent(2), nullValue())
+            assertThat("Evicted key is loaded again", cache.get(2), `is`(4))
+        }
+        assertThat(cache.stats.evictionCount, `is`(2L))
+    }
+
+    @Test
+    fun getAll() {
+        val batchCalls = AtomicInteger(0)
+        val cache = CachedLoadingMap<Int, String>(
+            config,
+            batchLoader = { keys ->
+                batchCalls.incrementAndGet()
+                keys.filter { it != 3 }.associateWith { "batch$it" }
+            },
+        ) { "single$it" }
+
+        runBlocking {
+            assertThat(cache.get(1), `is`("single1"))
+            assertThat(
+                cache.getAll(listOf(4, 3, 2, 1)),
+                equalTo(mapOf(4 to "batch4", 3 to "single3", 2 to "batch2", 1 to "single1")),
+            )
+            assertThat("Batch results are cached", cache.get(2), `is`("batch2"))
+            cache.getAll(listOf(1, 2, 3, 4))
+        }
+        assertThat("Cached values are not loaded in batch", batchCalls.get(), `is`(1))
+    }
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    @Test
+    fun getAllWaitsForLoad() = runTest {
+        val batchKeys = mutableListOf<Set<Int>>()
+        val cache = CachedLoadingMap<Int, String>(
+            config,
+            batchLoader = { keys ->
+                batchKeys += keys
+                keys.associateWith { "batch$it" }
+            },
+        ) {
+            delay(100.milliseconds)
+            "single$it"
+        }
+
+        val single = async { cache.get(1) }
+        runCurrent()
+        assertThat(cache.getAll(listOf(1, 2)), equalTo(mapOf(1 to "single1", 2 to "batch2")))
+        assertThat("Key that is being loaded is not loaded in batch", batchKeys, equalTo(listOf(setOf(2))))
+        assertThat(single.await(), `is`("single1"))
+    }
+
+    @Test
+    fun getAllCachesException() {
+        val batchCalls = AtomicInteger(0)
+        val cache = CachedLoadingMap<Int, String>(
+            config,
+            batchLoader = {
+                batchCalls.incrementAndGet()
+                throw IllegalStateException("Test")
+            },
+        ) { "single$it" }
+
+        runBlocking {
+            assertThrows<IllegalStateException> { cache.getAll(listOf(1, 2)) }
+            assertThrows<IllegalStateException> { cache.get(1) }
+            assertThrows<IllegalStateException> { cache.getAll(listOf(1, 2)) }
+            assertThat("Exception is cached", batchCalls.get(), `is`(1))
+            delay(22.milliseconds)
+            assertThat(cache.get(1), `is`("single1"))
+        }
+    }
+
+    @Test
+    fun throwTest() {
+        val cache = CachedLoadingMap<Int, Int>(config) {
+            if (calls.incrementAndGet() == 1) throw IllegalStateException() else it
+        }
+
+        runBlocking {
+            assertThrows<IllegalStateException> { cache.get(1) }
+            assertThrows<IllegalStateException> { cache.get(1) }
+            delay(22.milliseconds)
+            assertThat(cache.get(1), `is`(1))
+        }
+        assertThat(calls.get(), `is`(2))
+    }
+}
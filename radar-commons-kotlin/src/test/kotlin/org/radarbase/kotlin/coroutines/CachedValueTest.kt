@@ -1,9 +1,11 @@
 package org.radarbase.kotlin.coroutines
 
 import kotlinx.coroutines.DelicateCoroutinesApi
+import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.GlobalScope
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runTest
 import org.hamcrest.MatcherAssert.assertThat
 import org.hamcrest.Matchers.equalTo
 import org.hamcrest.Matchers.`is`
@@ -14,7 +16,7 @@ import org.junit.jupiter.api.assertThrows
 import java.util.concurrent.atomic.AtomicInteger
 import kotlin.time.Duration.Companion.milliseconds
 
-@OptIn(DelicateCoroutinesApi::class)
+@OptIn(DelicateCoroutinesApi::class, ExperimentalCoroutinesApi::class)
 internal class CachedValueTest {
     private lateinit var config: CacheConfig
 
@@ -171,4 +173,55 @@ internal class CachedValueTest {
             assertThat(cache.get(), `is`(3))
         }
     }
+
+    @Test
+    fun staleWhileRevalidate() = runTest {
+        val cache = CachedValue(
+            config.copy(
+                maxStaleness = 40.milliseconds,
+                revalidateScope = backgroundScope,
+                timeSource = testScheduler.timeSource,
+            ),
+        ) {
+            delay(10.milliseconds)
+            calls.incrementAndGet()
+        }
+
+        assertThat("Initial value is computed", cache.get(), `is`(1))
+        delay(42.milliseconds)
+        assertThat("Stale value is returned", cache.get(), `is`(1))
+        assertThat("Stale value is returned during refresh", cache.get(), `is`(1))
+        delay(15.milliseconds)
+        assertThat("Refreshed value is returned", cache.get(), `is`(2))
+        assertThat("Only one refresh is started", calls.get(), `is`(2))
+        delay(90.milliseconds)
+        assertThat("Value beyond maximum staleness is recomputed", cache.get(), `is`(3))
+    }
+
+    @Test
+    fun staleWhileRevalidateFailure() = runTest {
+        val cache = CachedValue(
+            config.copy(
+                maxStaleness = 40.milliseconds,
+                revalidateScope = backgroundScope,
+                timeSource = testScheduler.timeSource,
+            ),
+        ) {
+            delay(10.milliseconds)
+            val call = calls.incrementAndGet()
+            if (call == 2) throw IllegalStateException("Test")
+            call
+        }
+
+        assertThat("Initial value is computed", cache.get(), `is`(1))
+        delay(42.milliseconds)
+        assertThat("Stale value is returned", cache.get(), `is`(1))
+        delay(15.milliseconds)
+        assertThat("Stale value is kept after failed refresh", cache.get(), `is`(1))
+        assertThat("Failed refresh is not retried immediately", calls.get(), `is`(2))
+        delay(20.milliseconds)
+        assertThat("Stale value is returned during retry", cache.get(), `is`(1))
+        delay(15.milliseconds)
+        assertThat("Refreshed value is returned", cache.get(), `is`(3))
+    }
 }
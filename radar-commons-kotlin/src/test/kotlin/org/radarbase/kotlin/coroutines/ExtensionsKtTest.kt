@@ -15,7 +15,9 @@ import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeAll
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.junit.jupiter.api.fail
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.measureTime
@@ -66,6 +68,38 @@ class ExtensionsKtTest {
         assertThat(inBlockingTime, greaterThan(100.milliseconds))
     }
 
+    @Test
+    fun testForkJoinParallelism() = runBlocking {
+        val running = AtomicInteger(0)
+        val maxRunning = AtomicInteger(0)
+        val inBlockingTime = measureTime {
+            val result = (0 until 20).forkJoin(parallelism = 4) {
+                maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+                delay(10.milliseconds)
+                running.decrementAndGet()
+                it * 2
+            }
+            assertEquals(List(20) { it * 2 }, result)
+        }
+        assertEquals(4, maxRunning.get())
+        assertThat(inBlockingTime, greaterThan(50.milliseconds))
+    }
+
+    @Test
+    fun testLaunchJoinParallelismFailure() {
+        val started = AtomicInteger(0)
+        assertThrows<IllegalStateException> {
+            runBlocking {
+                (0 until 100).launchJoin(parallelism = 2) {
+                    started.incrementAndGet()
+                    delay(10.milliseconds)
+                    check(it != 3)
+                }
+            }
+        }
+        assertThat("Remaining values are not started after failure", started.get(), lessThan(10))
+    }
+
     @Test
     fun testForkJoinFirst() = runBlocking {
         val inBlockingTime = measureTime {
@@ -0,0 +1,65 @@
+package org.radarbase.kotlin.coroutines
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.instanceOf
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.milliseconds
+
+internal class MapUpdateTest {
+    @Test
+    fun withChanges() {
+        val base = (0 until 100).associateWith { "v$it" }
+        val first = base.withChanges(mapOf(1 to "w1", 200 to "w200"), setOf(2, 300))
+        assertThat(first, instanceOf(OverlayMap::class.java))
+        assertThat(first.size, `is`(100))
+        assertThat(first[1], `is`("w1"))
+        assertThat(first[2], nullValue())
+        assertThat(first[200], `is`("w200"))
+        assertThat(first[3], `is`("v3"))
+
+        val second = first.withChanges(mapOf(2 to "w2"), setOf(200, 3))
+        val expected = base.toMutableMap().apply {
+            put(1, "w1")
+            put(2, "w2")
+            remove(3)
+        }
+        assertThat(second, instanceOf(OverlayMap::class.java))
+        assertThat(second, equalTo<Map<Int, String>>(expected))
+        assertThat(second.entries.toSet(), equalTo(expected.entries))
+
+        val compacted = second.withChanges((10 until 30).associateWith { "x$it" }, emptySet())
+        assertThat("Large changes are compacted", compacted, instanceOf(HashMap::class.java))
+        assertThat(compacted.size, `is`(99))
+        assertThat(compacted[10], `is`("x10"))
+        assertThat(compacted[2], `is`("w2"))
+    }
+
+    @Test
+    fun incremental() {
+        val versions = mutableListOf<String?>()
+        val cache = CachedMap.incremental(
+            CacheConfig(refreshDuration = 20.milliseconds, retryDuration = 20.milliseconds),
+        ) { version ->
+            versions += version
+            when (version) {
+                null -> MapUpdate.Full(mapOf("a" to 1, "b" to 2), "1")
+                "1" -> MapUpdate.Delta(mapOf("c" to 3), setOf("a"), "2")
+                else -> MapUpdate.Full(mapOf("d" to 4), "3")
+            }
+        }
+
+        runBlocking {
+            assertThat(cache.get(), equalTo(mapOf("a" to 1, "b" to 2)))
+            delay(22.milliseconds)
+            assertThat(cache.get(), equalTo(mapOf("b" to 2, "c" to 3)))
+            delay(22.milliseconds)
+            assertThat("Full update replaces map", cache.get(), equalTo(mapOf("d" to 4)))
+        }
+        assertThat(versions, equalTo(listOf(null, "1", "2")))
+    }
+}
@@ -0,0 +1,64 @@
+package org.radarbase.kotlin.coroutines.flow
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.asFlow
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.lessThan
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.measureTime
+
+class ExtensionsKtTest {
+    @Test
+    fun testMapConcurrently() = runBlocking {
+        val running = AtomicInteger(0)
+        val maxRunning = AtomicInteger(0)
+        val inBlockingTime = measureTime {
+            val result = (0 until 20).asFlow()
+                .mapConcurrently(5) {
+                    maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+                    // later values finish first
+                    delay((20 - it).milliseconds)
+                    running.decrementAndGet()
+                    it * 2
+                }
+                .toList()
+            assertEquals(List(20) { it * 2 }, result)
+        }
+        assertEquals(5, maxRunning.get())
+        assertThat(inBlockingTime, lessThan(400.milliseconds))
+    }
+
+    @Test
+    fun testZipAll() = runBlocking {
+        for (numberOfFlows in listOf(0, 1, 2, 10, 100)) {
+            val flows = List(numberOfFlows) { i -> (0 until 5 + i).asFlow() }
+            val expected = if (numberOfFlows == 0) {
+                listOf(emptyList())
+            } else {
+                List(5) { value -> List(numberOfFlows) { value } }
+            }
+            assertEquals(expected, flows.zipAll().toList(), "Zip $numberOfFlows flows")
+        }
+    }
+
+    @Test
+    fun testZipAllFailure() {
+        val failing = flow {
+            emit(1)
+            throw IllegalStateException()
+        }
+        assertThrows<IllegalStateException> {
+            runBlocking {
+                listOf(flowOf(1, 2, 3), failing, flowOf(1, 2, 3)).zipAll().toList()
+            }
+        }
+    }
+}
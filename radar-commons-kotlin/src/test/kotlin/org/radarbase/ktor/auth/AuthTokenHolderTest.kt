@@ -0,0 +1,97 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runCurrent
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.instanceOf
+import org.junit.jupiter.api.Test
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.seconds
+
+internal class AuthTokenHolderTest {
+    @Test
+    fun failedRefresh() = runTest {
+        val holder = AuthTokenHolder { "old" }
+        val started = CompletableDeferred<Unit>()
+        val failing = async {
+            runCatching {
+                holder.setToken {
+                    started.complete(Unit)
+                    delay(1.seconds)
+                    throw IllegalStateException("failed")
+                }
+            }
+        }
+        started.await()
+        val waiting = async { runCatching { holder.setToken { "unused" } } }
+
+        assertThat(failing.await().exceptionOrNull(), instanceOf(IllegalStateException::class.java))
+        assertThat(
+            "Waiting contexts get the same failure",
+            waiting.await().exceptionOrNull(),
+            instanceOf(IllegalStateException::class.java),
+        )
+        assertThat("Failed refresh keeps the token", holder.loadToken(), equalTo("old"))
+        assertThat("Next refresh is not blocked", holder.setToken { "new" }, equalTo("new"))
+        assertThat(holder.loadToken(), equalTo("new"))
+    }
+
+    @Test
+    fun cancelledRefresh() = runTest {
+        val holder = AuthTokenHolder<String> { null }
+        val started = CompletableDeferred<Unit>()
+        val cancelled = launch {
+            holder.setToken {
+                started.complete(Unit)
+                awaitCancellation()
+            }
+        }
+        started.await()
+        val waiting = async { holder.setToken { "new" } }
+        runCurrent()
+        cancelled.cancel()
+
+        assertThat("Waiting context refreshes instead", waiting.await(), equalTo("new"))
+        assertThat(holder.loadToken(), equalTo("new"))
+    }
+
+    @Test
+    fun cancelledLoad() = runTest {
+        val loads = AtomicInteger(0)
+        val started = CompletableDeferred<Unit>()
+        val holder = AuthTokenHolder {
+            if (loads.incrementAndGet() == 1) {
+                started.complete(Unit)
+                awaitCancellation()
+            }
+            "stored"
+        }
+        val cancelled = launch { holder.loadToken() }
+        started.await()
+        val waiting = async { holder.loadToken() }
+        runCurrent()
+        cancelled.cancel()
+
+        assertThat("Waiting context loads instead", waiting.await(), equalTo("stored"))
+        assertThat(holder.loadToken(), equalTo("stored"))
+        assertThat(loads.get(), equalTo(2))
+    }
+
+    @Test
+    fun failedLoad() = runTest {
+        val loads = AtomicInteger(0)
+        val holder = AuthTokenHolder {
+            if (loads.incrementAndGet() == 1) throw IOException("Cannot read token")
+            "stored"
+        }
+        assertThat(runCatching { holder.loadToken() }.exceptionOrNull(), instanceOf(IOException::class.java))
+        assertThat("Next load is not blocked", holder.loadToken(), equalTo("stored"))
+    }
+}
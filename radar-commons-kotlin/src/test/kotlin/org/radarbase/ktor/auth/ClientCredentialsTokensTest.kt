@@ -0,0 +1,243 @@
+package org.radarbase.ktor.auth
+
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.cio.CIO
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.job
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.contains
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.everyItem
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.not
+import org.hamcrest.Matchers.nullValue
+import org.hamcrest.Matchers.sameInstance
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.io.IOException
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TestTimeSource
+
+internal class ClientCredentialsTokensTest {
+    @AfterEach
+    fun tearDown() {
+        ClientCredentialsAuthProvider.clearSharedTokens()
+    }
+
+    @Test
+    fun shareTokens() {
+        val config = ClientCredentialsConfig(tokenUrl = "http://localhost/token", clientId = "a")
+        val loads = AtomicInteger(0)
+        fun tokens(key: Any?) = ClientCredentialsAuthConfig().apply {
+            loadTokens {
+                loads.incrementAndGet()
+                OAuth2AccessToken(accessToken = "abc", expiresIn = 3600)
+            }
+            if (key != null) shareTokens(key)
+        }.createTokens()
+
+        val first = tokens(config)
+        assertThat(tokens(config.copy()), sameInstance(first))
+        assertThat(tokens(config.copy(scope = "other")), not(sameInstance(first)))
+        assertThat(tokens(null), not(sameInstance(first)))
+
+        runBlocking {
+            assertThat(first.validToken()?.token?.accessToken, equalTo("abc"))
+            assertThat(tokens(config).validToken()?.token?.accessToken, equalTo("abc"))
+        }
+        assertThat("Shared token is loaded once", loads.get(), `is`(1))
+    }
+
+    @Test
+    fun sharedTokensKeyIncludesSecret() {
+        val config = ClientCredentialsConfig(
+            tokenUrl = "http://localhost/token",
+            clientId = "a",
+            clientSecret = "secret",
+        )
+        assertThat(SharedTokensKey(config.copy()), equalTo(SharedTokensKey(config)))
+        assertThat(
+            SharedTokensKey(config.copy(clientSecret = "other")),
+            not(equalTo(SharedTokensKey(config))),
+        )
+        assertThat(SharedTokensKey(config).clientSecretHash, not(equalTo("secret")))
+    }
+
+    @Test
+    fun expiredTokenIsNotUsed() {
+        val timeSource = TestTimeSource()
+        val tokens = ClientCredentialsTokens(
+            requestToken = { null },
+            loadTokens = { OAuth2AccessToken(accessToken = "abc", expiresIn = 10) },
+            refreshFraction = 0.8,
+            timeSource = timeSource,
+        )
+        runBlocking {
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("abc"))
+            timeSource += 10.seconds
+            assertThat(tokens.validToken(), nullValue())
+        }
+    }
+
+    @Test
+    fun expiredTokenIsRefreshedBeforeUse() = runTest {
+        val timeSource = TestTimeSource()
+        val tokens = ClientCredentialsTokens(
+            requestToken = { OAuth2AccessToken(accessToken = "new", expiresIn = 3600) },
+            loadTokens = { OAuth2AccessToken(accessToken = "stored", expiresIn = 10) },
+            refreshFraction = null,
+            timeSource = timeSource,
+        )
+        HttpClient(CIO).use { client ->
+            tokens.attach(client)
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("stored"))
+            timeSource += 10.seconds
+            assertThat(
+                "Expired token is refreshed with the attached client",
+                tokens.validToken()?.token?.accessToken,
+                equalTo("new"),
+            )
+        }
+    }
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    @Test
+    fun refreshInBackground() = runTest {
+        val requests = AtomicInteger(0)
+        val tokens = ClientCredentialsTokens(
+            requestToken = {
+                when (requests.incrementAndGet()) {
+                    1 -> OAuth2AccessToken(accessToken = "a", expiresIn = 100)
+                    2 -> throw IOException("Connection refused")
+                    else -> OAuth2AccessToken(accessToken = "b", expiresIn = 100)
+                }
+            },
+            loadTokens = { null },
+            refreshFraction = 0.5,
+            timeSource = testScheduler.timeSource,
+            refreshScope = backgroundScope,
+        )
+        HttpClient(CIO).use { client ->
+            assertThat(tokens.refresh(client), `is`(true))
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("a"))
+
+            delay(51.seconds)
+            assertThat("Token is refreshed halfway its lifetime", requests.get(), `is`(2))
+            assertThat("Failed refresh keeps the token", tokens.validToken()?.token?.accessToken, equalTo("a"))
+
+            delay(10.seconds)
+            assertThat("Failed refresh is retried", requests.get(), `is`(3))
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("b"))
+        }
+    }
+
+    @OptIn(ExperimentalCoroutinesApi::class)
+    @Test
+    fun refreshStoredTokenInBackground() = runTest {
+        val requests = AtomicInteger(0)
+        val tokens = ClientCredentialsTokens(
+            requestToken = {
+                requests.incrementAndGet()
+                OAuth2AccessToken(accessToken = "new", expiresIn = 100)
+            },
+            loadTokens = { OAuth2AccessToken(accessToken = "stored", expiresIn = 100) },
+            refreshFraction = 0.5,
+            timeSource = testScheduler.timeSource,
+            refreshScope = backgroundScope,
+        )
+        HttpClient(CIO).use { client ->
+            tokens.attach(client)
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("stored"))
+            assertThat(requests.get(), `is`(0))
+
+            delay(51.seconds)
+            assertThat("Stored token is refreshed before it expires", requests.get(), `is`(1))
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("new"))
+        }
+    }
+
+    @Test
+    fun refreshSharedTokensOnce() = runTest {
+        val requests = AtomicInteger(0)
+        val config = ClientCredentialsAuthConfig().apply {
+            requestToken {
+                requests.incrementAndGet()
+                delay(1.seconds)
+                OAuth2AccessToken(accessToken = "abc", expiresIn = 3600)
+            }
+            shareTokens("shared")
+        }
+        val tokens = List(5) { config.createTokens() }
+        assertThat(tokens, everyItem(sameInstance(tokens[0])))
+        val clients = List(5) { HttpClient(CIO) }
+        try {
+            val refreshed = clients
+                .map { client -> async { tokens[0].refresh(client) } }
+                .awaitAll()
+            assertThat(refreshed, everyItem(`is`(true)))
+            assertThat("Clients share a single token request", requests.get(), `is`(1))
+        } finally {
+            clients.forEach { it.close() }
+        }
+    }
+
+    @Test
+    fun closedClientIsNotUsed() = runTest {
+        val usedClients = mutableListOf<HttpClient>()
+        val timeSource = TestTimeSource()
+        val tokens = ClientCredentialsTokens(
+            requestToken = {
+                usedClients += client
+                OAuth2AccessToken(accessToken = "abc", expiresIn = 60)
+            },
+            loadTokens = { null },
+            refreshFraction = null,
+            timeSource = timeSource,
+        )
+        val first = HttpClient(CIO)
+        HttpClient(CIO).use { second ->
+            tokens.refresh(first)
+            tokens.refresh(second)
+            first.close()
+            first.coroutineContext.job.join()
+
+            timeSource += 60.seconds
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("abc"))
+            assertThat(usedClients, contains(first, second, second))
+        }
+    }
+
+    @Test
+    fun saveFailureIsIgnored() = runTest {
+        val tokens = ClientCredentialsTokens(
+            requestToken = { OAuth2AccessToken(accessToken = "abc", expiresIn = 3600) },
+            loadTokens = { null },
+            refreshFraction = null,
+            saveTokens = { throw IOException("No space left on device") },
+        )
+        HttpClient(CIO).use { client ->
+            assertThat(tokens.refresh(client), `is`(true))
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("abc"))
+        }
+    }
+
+    @Test
+    fun loadFailureIsIgnored() = runTest {
+        val tokens = ClientCredentialsTokens(
+            requestToken = { OAuth2AccessToken(accessToken = "new", expiresIn = 3600) },
+            loadTokens = { throw IOException("Permission denied") },
+            refreshFraction = null,
+        )
+        assertThat(tokens.validToken(), nullValue())
+        HttpClient(CIO).use { client ->
+            assertThat(tokens.refresh(client), `is`(true))
+            assertThat(tokens.validToken()?.token?.accessToken, equalTo("new"))
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package org.radarbase.ktor.auth
+
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.runBlocking
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.not
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneOffset
+
+internal class EncryptedFileTokenStoreTest {
+    @TempDir
+    lateinit var tempDir: Path
+
+    private val token = OAuth2AccessToken(accessToken = "secret-token", expiresIn = 3600, tokenType = "bearer")
+
+    @Test
+    fun saveAndLoad() = runBlocking {
+        val path = tempDir.resolve("token")
+        EncryptedFileTokenStore(path, clock = clockAt(1000)).save(token)
+
+        assertThat(Files.readAllBytes(path).decodeToString().contains("secret-token"), `is`(false))
+        assertThat(Files.exists(tempDir.resolve("token.key")), `is`(true))
+
+        val restarted = EncryptedFileTokenStore(path, clock = clockAt(1600))
+        assertThat("Remaining lifetime is returned", restarted.load(), equalTo(token.copy(expiresIn = 3000)))
+        assertThat("Expired token is not returned", EncryptedFileTokenStore(path, clock = clockAt(4600)).load(), nullValue())
+    }
+
+    @Test
+    fun loadMissing() = runBlocking {
+        assertThat(EncryptedFileTokenStore(tempDir.resolve("token")).load(), nullValue())
+    }
+
+    @Test
+    fun loadWithOtherKey() = runBlocking {
+        val path = tempDir.resolve("token")
+        EncryptedFileTokenStore(path).save(token)
+        val otherKey = EncryptedFileTokenStore(path, keyPath = tempDir.resolve("other.key"))
+        assertThat(otherKey.load(), nullValue())
+        assertThat(Files.readAllBytes(tempDir.resolve("other.key")), not(equalTo(Files.readAllBytes(tempDir.resolve("token.key")))))
+    }
+
+    @Test
+    fun loadTampered() = runBlocking {
+        val path = tempDir.resolve("token")
+        EncryptedFileTokenStore(path).save(token)
+        val bytes = Files.readAllBytes(path)
+        bytes[bytes.size - 1] = (bytes[bytes.size - 1].toInt() xor 1).toByte()
+        Files.write(path, bytes)
+        assertThat(EncryptedFileTokenStore(path).load(), nullValue())
+    }
+
+    @Test
+    fun concurrentKeyGeneration() = runBlocking {
+        val path = tempDir.resolve("token")
+        val stores = List(8) { EncryptedFileTokenStore(path) }
+        stores.mapIndexed { i, store ->
+            async(Dispatchers.IO) { store.save(token.copy(accessToken = "token-$i")) }
+        }.awaitAll()
+        stores.forEach { store ->
+            assertThat("All stores use the same key", store.load(), not(nullValue()))
+        }
+    }
+
+    private fun clockAt(epochSecond: Long): Clock = Clock.fixed(Instant.ofEpochSecond(epochSecond), ZoneOffset.UTC)
+}
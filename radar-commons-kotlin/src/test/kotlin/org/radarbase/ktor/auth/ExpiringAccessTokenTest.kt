@@ -0,0 +1,59 @@
+package org.radarbase.ktor.auth
+
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.equalTo
+import org.hamcrest.Matchers.`is`
+import org.hamcrest.Matchers.nullValue
+import org.junit.jupiter.api.Test
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TestTimeSource
+
+internal class ExpiringAccessTokenTest {
+    @Test
+    fun expiry() {
+        val timeSource = TestTimeSource()
+        val token = ExpiringAccessToken(
+            OAuth2AccessToken(accessToken = "abc", expiresIn = 100),
+            timeSource.markNow(),
+        )
+        assertThat(token.isExpired(), `is`(false))
+        assertThat(token.untilRefresh(0.8), equalTo(80.seconds))
+        timeSource += 90.seconds
+        assertThat(token.untilRefresh(0.8), equalTo((-10).seconds))
+        assertThat(token.isExpired(), `is`(false))
+        timeSource += 5.seconds
+        assertThat("Token expires within margin", token.isExpired(), `is`(true))
+    }
+
+    @Test
+    fun shortLifetime() {
+        val timeSource = TestTimeSource()
+        val token = ExpiringAccessToken(
+            OAuth2AccessToken(accessToken = "abc", expiresIn = 10),
+            timeSource.markNow(),
+            refreshFraction = 0.8,
+        )
+        assertThat("Token within margin is valid on arrival", token.isExpired(), `is`(false))
+        timeSource += 8.seconds
+        assertThat(token.untilRefresh(0.8), equalTo(0.seconds))
+        assertThat("Token is valid at background refresh", token.isExpired(), `is`(false))
+        timeSource += 1.seconds
+        assertThat("Token expires within reduced margin", token.isExpired(), `is`(true))
+
+        val withoutRefresh = ExpiringAccessToken(
+            OAuth2AccessToken(accessToken = "abc", expiresIn = 2),
+            timeSource.markNow(),
+        )
+        assertThat(withoutRefresh.isExpired(), `is`(false))
+        timeSource += 1.seconds
+        assertThat(withoutRefresh.isExpired(), `is`(true))
+    }
+
+    @Test
+    fun noExpiry() {
+        val token = ExpiringAccessToken(OAuth2AccessToken(accessToken = "abc"))
+        assertThat(token.authorizationHeader, equalTo("Bearer abc"))
+        assertThat(token.isExpired(), `is`(false))
+        assertThat(token.untilRefresh(0.8), nullValue())
+    }
+}
@@ -0,0 +1,37 @@
+package org.radarbase.ktor.auth
+
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.mock.MockEngine
+import io.ktor.client.engine.mock.respondOk
+import io.ktor.client.plugins.auth.Auth
+import io.ktor.client.request.get
+import io.ktor.client.request.header
+import io.ktor.http.HttpHeaders
+import kotlinx.coroutines.test.runTest
+import org.hamcrest.MatcherAssert.assertThat
+import org.hamcrest.Matchers.contains
+import org.hamcrest.Matchers.`is`
+import org.junit.jupiter.api.Test
+
+internal class OAuthClientProviderTest {
+    @Test
+    fun singleAuthorizationHeader() = runTest {
+        val engine = MockEngine { respondOk() }
+        HttpClient(engine) {
+            install(Auth) {
+                clientCredentials {
+                    loadTokens { OAuth2AccessToken(accessToken = "abc", expiresIn = 3600) }
+                }
+            }
+        }.use { client ->
+            client.get("http://localhost/test")
+            client.get("http://localhost/test") {
+                header(HttpHeaders.Authorization, "Bearer old")
+            }
+        }
+        assertThat(engine.requestHistory.size, `is`(2))
+        engine.requestHistory.forEach { request ->
+            assertThat(request.headers.getAll(HttpHeaders.Authorization), contains("Bearer abc"))
+        }
+    }
+}
@@ -46,6 +46,8 @@ dependencies {
     implementation(libs.kafka.avro.serializer) {
         runtimeOnly(libs.google.guava)
     }
+    // Serdes in the public API implement Kafka interfaces
+    api(libs.kafka.clients)
 
     testImplementation(libs.mockito.core)
     testImplementation(libs.radar.schemas.commons)
@@ -0,0 +1,152 @@
+package org.radarbase.stream
+
+/**
+ * Hash map with primitive long keys, using open addressing with linear probing. This avoids
+ * boxing keys and allocating map entries. This class is not thread-safe.
+ */
+internal class LongObjectMap<V : Any>(initialCapacity: Int = 8) {
+    private var keys: LongArray
+    private var values: Array<Any?>
+    private var mask: Int
+
+    /** Number of entries in the map. */
+    var size = 0
+        private set
+
+    init {
+        val capacity = Integer.highestOneBit((initialCapacity * 2 - 1).coerceAtLeast(2)) * 2
+        keys = LongArray(capacity)
+        values = arrayOfNulls(capacity)
+        mask = capacity - 1
+    }
+
+    fun isEmpty(): Boolean = size == 0
+
+    @Suppress("UNCHECKED_CAST")
+    operator fun get(key: Long): V? {
+        var index = indexOf(key)
+        while (true) {
+            val value = values[index] ?: return null
+            if (keys[index] == key) return value as V
+            index = (index + 1) and mask
+        }
+    }
+
+    /** Get the value for given key, or compute and store it if it is not present. */
+    inline fun getOrPut(key: Long, defaultValue: () -> V): V {
+        get(key)?.let { return it }
+        return defaultValue().also { put(key, it) }
+    }
+
+    fun put(key: Long, value: V) {
+        if ((size + 1) * 2 > keys.size) {
+            resize(keys.size * 2)
+        }
+        var index = indexOf(key)
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                values[index] = value
+                return
+            }
+            index = (index + 1) and mask
+        }
+        keys[index] = key
+        values[index] = value
+        size++
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    fun remove(key: Long): V? {
+        var index = indexOf(key)
+        while (true) {
+            val value = values[index] ?: return null
+            if (keys[index] == key) {
+                shiftBack(index)
+                size--
+                return value as V
+            }
+            index = (index + 1) and mask
+        }
+    }
+
+    /**
+     * Remove all entries that match given predicate, returning the number of removed entries.
+     */
+    inline fun removeIf(predicate: (Long, V) -> Boolean): Int {
+        var removed = 0
+        var index = 0
+        while (index < capacity) {
+            val value = valueAt(index)
+            if (value != null && predicate(keyAt(index), value)) {
+                removeAt(index)
+                removed++
+                // a shifted entry may now occupy this index, so check it again
+            } else {
+                index++
+            }
+        }
+        return removed
+    }
+
+    /** Apply given action to each entry. */
+    inline fun forEach(action: (Long, V) -> Unit) {
+        for (index in 0 until capacity) {
+            val value = valueAt(index) ?: continue
+            action(keyAt(index), value)
+        }
+    }
+
+    fun clear() {
+        values.fill(null)
+        size = 0
+    }
+
+    internal val capacity: Int
+        get() = keys.size
+
+    internal fun keyAt(index: Int): Long = keys[index]
+
+    @Suppress("UNCHECKED_CAST")
+    internal fun valueAt(index: Int): V? = values[index] as V?
+
+    internal fun removeAt(index: Int) {
+        shiftBack(index)
+        size--
+    }
+
+    /** Remove the entry at given index, shifting back later entries of the same probe run. */
+    private fun shiftBack(removeIndex: Int) {
+        var gap = removeIndex
+        var index = (gap + 1) and mask
+        while (values[index] != null) {
+            val home = indexOf(keys[index])
+            // move the entry into the gap if its home position is not between the gap and itself
+            if ((index - home) and mask >= (index - gap) and mask) {
+                keys[gap] = keys[index]
+                values[gap] = values[index]
+                gap = index
+            }
+            index = (index + 1) and mask
+        }
+        values[gap] = null
+    }
+
+    private fun resize(newCapacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        keys = LongArray(newCapacity)
+        values = arrayOfNulls(newCapacity)
+        mask = newCapacity - 1
+        size = 0
+        for (i in oldKeys.indices) {
+            @Suppress("UNCHECKED_CAST")
+            val value = oldValues[i] as V? ?: continue
+            put(oldKeys[i], value)
+        }
+    }
+
+    private fun indexOf(key: Long): Int {
+        val hash = key * -0x61c8864680b583ebL
+        return (hash xor (hash ushr 32)).toInt() and mask
+    }
+}
@@ -0,0 +1,214 @@
+package org.radarbase.stream
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.IndexedRecord
+import org.radarbase.data.RecordData
+import org.radarbase.stream.collector.AggregateListCollector
+import java.util.IdentityHashMap
+import kotlin.math.floor
+import kotlin.time.Duration
+
+/**
+ * In-process aggregation of records in tumbling or hopping time windows, without a Kafka Streams
+ * topology. Records are assigned to windows by their time field, in seconds since the Unix epoch
+ * as in RADAR-base schemas. Each key and window has its own [AggregateListCollector].
+ *
+ * The watermark is the largest record time seen so far. A window is closed and passed to
+ * [onWindowClosed] once the watermark passes the end of the window plus the grace period. Records
+ * that only belong to closed windows are dropped and counted in [droppedRecords].
+ *
+ * This class is not thread-safe.
+ *
+ * @param windowSize duration of each window.
+ * @param advance time between the start of subsequent windows. If equal to [windowSize], windows
+ * are tumbling, if smaller, they are hopping and overlapping.
+ * @param gracePeriod time that a window is kept open after its end to accept late records.
+ * @param timeField name of the record field containing the time in seconds.
+ * @param createCollector creates the collector of a new window.
+ * @param onWindowClosed receives each closed window. Windows that are closed at the same time
+ * are passed in order of their end time.
+ */
+class WindowedAggregator<K : Any>(
+    windowSize: Duration,
+    advance: Duration = windowSize,
+    gracePeriod: Duration = Duration.ZERO,
+    private val timeField: String = "time",
+    private val createCollector: () -> AggregateListCollector,
+    private val onWindowClosed: (AggregatedWindow<K>) -> Unit,
+) {
+    private val windowSize: Long = windowSize.inWholeMilliseconds
+    private val advance: Long = advance.inWholeMilliseconds
+    private val gracePeriod: Long = gracePeriod.inWholeMilliseconds
+    private val windows = HashMap<K, LongObjectMap<AggregateListCollector>>()
+    private var nextCloseTime = Long.MAX_VALUE
+
+    /** Records of a batch per window collector, that are not added to the collector yet. */
+    private val pendingRecords = IdentityHashMap<AggregateListCollector, MutableList<IndexedRecord>>()
+
+    private var timeSchema: Schema? = null
+    private var timePos = -1
+
+    /** Largest record time seen so far, in milliseconds since the Unix epoch. */
+    var watermark: Long = Long.MIN_VALUE
+        private set
+
+    /** Number of records that were dropped because all their windows were already closed. */
+    var droppedRecords: Long = 0
+        private set
+
+    /** Number of windows that are currently open. */
+    val openWindows: Int
+        get() = windows.values.sumOf { it.size }
+
+    init {
+        require(this.windowSize > 0) { "Window size must be at least one millisecond" }
+        require(this.advance in 1..this.windowSize) {
+            "Window advance must be positive and not larger than the window size"
+        }
+        require(!gracePeriod.isNegative()) { "Grace period may not be negative" }
+    }
+
+    /**
+     * Add a record to all windows that it belongs to.
+     * @throws IllegalArgumentException if the record does not have a numeric time field.
+     */
+    fun add(key: K, record: IndexedRecord) = add(key, record, isBatch = false)
+
+    /**
+     * Add a record to all windows that it belongs to. In a batch, the record is kept in
+     * [pendingRecords] until the batch is done or a window closes.
+     */
+    private fun add(key: K, record: IndexedRecord, isBatch: Boolean) {
+        val time = recordTime(record)
+        if (time > watermark) {
+            watermark = time
+        }
+        val keyWindows = windows[key]
+        var added = false
+        var start = Math.floorDiv(time, advance) * advance
+        while (start > time - windowSize) {
+            val closeTime = start + windowSize + gracePeriod
+            if (closeTime > watermark) {
+                val collector = if (keyWindows != null) {
+                    keyWindows.getOrPut(start) { createCollector() }
+                } else {
+                    LongObjectMap<AggregateListCollector>()
+                        .also { windows[key] = it }
+                        .getOrPut(start) { createCollector() }
+                }
+                if (isBatch) {
+                    pendingRecords.getOrPut(collector) { ArrayList() }.add(record)
+                } else {
+                    collector.add(record)
+                }
+                if (closeTime < nextCloseTime) {
+                    nextCloseTime = closeTime
+                }
+                added = true
+            }
+            start -= advance
+        }
+        if (!added) {
+            droppedRecords++
+        }
+        if (watermark >= nextCloseTime) {
+            closeWindows()
+        }
+    }
+
+    /**
+     * Add all records with the same key. The records of each window are added to its collector
+     * in bulk, when the batch is done or before the window closes.
+     * @throws IllegalArgumentException if a record does not have a numeric time field. The
+     * records before it are still added.
+     */
+    fun addAll(key: K, records: Iterable<IndexedRecord>) {
+        try {
+            records.forEach { add(key, it, isBatch = true) }
+        } finally {
+            addPendingRecords()
+        }
+    }
+
+    /** Add all records of a batch, using the batch key. */
+    fun addAll(records: RecordData<K, out IndexedRecord>) = addAll(records.key, records)
+
+    private fun addPendingRecords() {
+        if (pendingRecords.isEmpty()) return
+        pendingRecords.forEach { (collector, records) -> collector.addAll(records) }
+        pendingRecords.clear()
+    }
+
+    /**
+     * Advance the watermark without adding a record, for example when no data is coming in.
+     * This closes all windows that end before given time minus the grace period.
+     * @param time time in milliseconds since the Unix epoch.
+     */
+    fun advanceWatermark(time: Long) {
+        if (time > watermark) {
+            watermark = time
+            if (watermark >= nextCloseTime) {
+                closeWindows()
+            }
+        }
+    }
+
+    /** Close all open windows, regardless of the watermark. */
+    fun flush() {
+        closeWindows(Long.MAX_VALUE)
+    }
+
+    private fun closeWindows(closeBefore: Long = watermark) {
+        addPendingRecords()
+        val closed = ArrayList<AggregatedWindow<K>>()
+        var newNextCloseTime = Long.MAX_VALUE
+        val keyIterator = windows.entries.iterator()
+        while (keyIterator.hasNext()) {
+            val (key, keyWindows) = keyIterator.next()
+            keyWindows.removeIf { start, collector ->
+                val closeTime = start + windowSize + gracePeriod
+                if (closeTime <= closeBefore) {
+                    closed += AggregatedWindow(key, start, start + windowSize, collector)
+                    true
+                } else {
+                    if (closeTime < newNextCloseTime) {
+                        newNextCloseTime = closeTime
+                    }
+                    false
+                }
+            }
+            if (keyWindows.isEmpty()) {
+                keyIterator.remove()
+            }
+        }
+        nextCloseTime = newNextCloseTime
+        closed.sortBy { it.end }
+        closed.forEach(onWindowClosed)
+    }
+
+    private fun recordTime(record: IndexedRecord): Long {
+        val schema = record.schema
+        if (schema !== timeSchema) {
+            timePos = requireNotNull(schema.getField(timeField)) {
+                "Record ${schema.fullName} has no field $timeField"
+            }.pos()
+            timeSchema = schema
+        }
+        val time = requireNotNull(record[timePos] as? Number) {
+            "Record ${schema.fullName} has no numeric time"
+        }
+        return floor(time.toDouble() * 1000.0).toLong()
+    }
+
+    /**
+     * Aggregate of the records of one key in one time window.
+     * @param start start of the window in milliseconds since the Unix epoch, inclusive.
+     * @param end end of the window in milliseconds since the Unix epoch, exclusive.
+     */
+    data class AggregatedWindow<K : Any>(
+        val key: K,
+        val start: Long,
+        val end: Long,
+        val collector: AggregateListCollector,
+    )
+}
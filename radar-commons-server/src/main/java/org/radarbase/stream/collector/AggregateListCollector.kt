@@ -18,7 +18,9 @@ package org.radarbase.stream.collector
 import org.apache.avro.Schema
 import org.apache.avro.generic.IndexedRecord
 import org.apache.avro.specific.SpecificRecord
+import org.radarbase.data.ColumnarRecordData
 import org.radarbase.util.SpecificAvroConvertible
+import java.util.Objects
 
 /**
  * Java class to aggregate multiple fields of data using Kafka Streams. It can be used for example
@@ -27,8 +29,17 @@ import org.radarbase.util.SpecificAvroConvertible
 class AggregateListCollector : RecordCollector, SpecificAvroConvertible {
     private var collectors: Array<NumericAggregateCollector>?
 
-    constructor() {
+    /** Summation of field collectors that are restored with [fromAvro]. */
+    private val summation: NumericAggregateCollector.Summation
+
+    /**
+     * Collector without fields, to restore with [fromAvro]. The summation is not part of the
+     * Avro state, so it should match the summation of the collector that was stored.
+     */
+    @JvmOverloads
+    constructor(summation: NumericAggregateCollector.Summation = NumericAggregateCollector.Summation.EXACT) {
         collectors = null
+        this.summation = summation
     }
 
     /** Array collector without schema. Double entries can be added, but entire records cannot.  */
@@ -42,10 +53,18 @@ class AggregateListCollector : RecordCollector, SpecificAvroConvertible {
      * Aggregate list collector with single record schema. Double entries or records can be added.
      * This assumes that all fields in the aggregate list are extracted from a single record schema.
      */
-    constructor(fieldNames: Array<String>, schema: Schema?, useReservoir: Boolean) {
+    @JvmOverloads
+    constructor(
+        fieldNames: Array<String>,
+        schema: Schema?,
+        useReservoir: Boolean,
+        summation: NumericAggregateCollector.Summation = NumericAggregateCollector.Summation.EXACT,
+        useDigest: Boolean = false,
+    ) {
         collectors = Array(fieldNames.size) { i ->
-            NumericAggregateCollector(fieldNames[i], schema, useReservoir)
+            NumericAggregateCollector(fieldNames[i], schema, useReservoir, summation, useDigest)
         }
+        this.summation = summation
     }
 
     override fun add(record: IndexedRecord): AggregateListCollector {
@@ -71,6 +90,98 @@ class AggregateListCollector : RecordCollector, SpecificAvroConvertible {
         return this
     }
 
+    /**
+     * Add all records in a batch. The records are iterated once, and the values of each field
+     * are buffered and added to its collector in bulk. If the records are [ColumnarRecordData]
+     * that store all fields as numeric columns, the columns are read directly instead.
+     * @throws IllegalStateException if this collector was constructed without a schema.
+     * @see NumericAggregateCollector.addAll
+     */
+    override fun addAll(records: Iterable<IndexedRecord>): AggregateListCollector {
+        val collectors = collectors ?: return this
+        collectors.forEach { it.checkSchema() }
+        if (records is ColumnarRecordData<*, *> && collectors.all { it.isColumnOf(records) }) {
+            collectors.forEach { it.addAll(records) }
+            return this
+        }
+        val batchSize = NumericAggregateCollector.batchSize(records)
+        if (batchSize == 0) return this
+        val numFields = collectors.size
+        val buffers = Array(numFields) { DoubleArray(batchSize) }
+        val lengths = IntArray(numFields)
+        for (record in records) {
+            for (field in 0 until numFields) {
+                val collector = collectors[field]
+                if (!collector.readValue(record, buffers[field], lengths[field])) continue
+                lengths[field]++
+                if (lengths[field] == batchSize) {
+                    collector.addAll(buffers[field], 0, batchSize)
+                    lengths[field] = 0
+                }
+            }
+        }
+        for (field in 0 until numFields) {
+            collectors[field].addAll(buffers[field], 0, lengths[field])
+        }
+        return this
+    }
+
+    /**
+     * Add a range of samples in row-major order. Each row contains one value per field
+     * collector, in the order of the field names.
+     * @param values sample rows to add.
+     * @param offset index of the first value of the first row.
+     * @param length number of values to add, a multiple of the number of fields.
+     * @throws IllegalArgumentException if [length] is not a multiple of the number of fields.
+     * @throws IndexOutOfBoundsException if the range is not contained in [values].
+     */
+    @JvmOverloads
+    fun addAll(
+        values: DoubleArray,
+        offset: Int = 0,
+        length: Int = values.size - offset,
+    ): AggregateListCollector {
+        val collectors = collectors ?: return this
+        Objects.checkFromIndexSize(offset, length, values.size)
+        val numFields = collectors.size
+        require(length % numFields == 0) {
+            "The length of current input is not a multiple of the number of fields in this collector"
+        }
+        if (numFields == 1) {
+            collectors[0].addAll(values, offset, length)
+            return this
+        }
+        val numRows = length / numFields
+        val column = DoubleArray(numRows)
+        for (field in 0 until numFields) {
+            var index = offset + field
+            for (row in 0 until numRows) {
+                column[row] = values[index]
+                index += numFields
+            }
+            collectors[field].addAll(column, 0, numRows)
+        }
+        return this
+    }
+
+    /**
+     * Merge the samples of another list collector into this one, field by field.
+     * The other collector is not modified.
+     * @throws IllegalArgumentException if the collectors do not have the same number of fields.
+     * @see NumericAggregateCollector.merge
+     */
+    fun merge(other: AggregateListCollector): AggregateListCollector {
+        val collectors = collectors
+        val otherCollectors = other.collectors ?: return this
+        require(collectors != null && collectors.size == otherCollectors.size) {
+            "Cannot merge list collectors with a different number of fields"
+        }
+        for (i in collectors.indices) {
+            collectors[i].merge(otherCollectors[i])
+        }
+        return this
+    }
+
     override fun toString(): String = collectors.contentToString()
 
     fun getCollectors(): List<NumericAggregateCollector> {
@@ -78,6 +189,27 @@ class AggregateListCollector : RecordCollector, SpecificAvroConvertible {
             ?: listOf()
     }
 
+    /** Write the collector in the compact binary format of [CollectorStateFormat]. */
+    internal fun writeCompact(writer: CompactStateWriter, compress: Boolean) {
+        val collectors = collectors
+        if (collectors == null) {
+            writer.writeVarInt(0)
+            return
+        }
+        writer.writeVarInt(collectors.size + 1)
+        collectors.forEach { it.writeCompact(writer, compress) }
+    }
+
+    /** Read the collector from the compact binary format of [CollectorStateFormat]. */
+    internal fun readCompact(reader: CompactStateReader, compress: Boolean) {
+        val size = reader.readVarInt()
+        collectors = if (size == 0) {
+            null
+        } else {
+            Array(size - 1) { NumericAggregateCollector.readCompact(reader, compress) }
+        }
+    }
+
     override fun toAvro(): AggregateListState {
         val collectors = collectors
         return AggregateListState().apply {
@@ -91,10 +223,15 @@ class AggregateListCollector : RecordCollector, SpecificAvroConvertible {
         require(record is AggregateListState) { "Cannot convert incompatible Avro record" }
         val aggregates = record.aggregates
         val len = aggregates.size
+        val current = collectors
         collectors = Array(len) { i ->
             val aggregate = aggregates[i]
             require(aggregate is NumericAggregateState) { "Cannot convert type " + record.javaClass }
-            NumericAggregateCollector().apply {
+            // existing collectors keep their summation and reservoir settings, which are not
+            // part of the Avro state
+            val collector = current?.getOrNull(i)
+                ?: NumericAggregateCollector(summation = summation)
+            collector.apply {
                 fromAvro(aggregate)
             }
         }
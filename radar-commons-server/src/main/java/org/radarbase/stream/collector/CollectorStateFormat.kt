@@ -0,0 +1,88 @@
+package org.radarbase.stream.collector
+
+/**
+ * Compact binary format for collector state, as an alternative to the Avro state records of
+ * [NumericAggregateCollector.toAvro] and [AggregateListCollector.toAvro]. Counts and lengths are
+ * written as variable-length integers and samples as packed doubles, without creating boxed
+ * values or intermediate records. Optionally, sample arrays are XOR-compressed, which
+ * considerably reduces the size of sorted reservoirs and digests.
+ *
+ * The first byte of the data is the format version, followed by the collector type and the
+ * compression flag.
+ */
+object CollectorStateFormat {
+    private const val VERSION = 1
+    private const val TYPE_NUMERIC_AGGREGATE = 1
+    private const val TYPE_AGGREGATE_LIST = 2
+    private const val FLAG_COMPRESS = 0x80
+
+    private val writers = ThreadLocal.withInitial { CompactStateWriter() }
+
+    /**
+     * Serialize a numeric aggregate collector.
+     * @param compress whether to compress sample arrays.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun serialize(collector: NumericAggregateCollector, compress: Boolean = true): ByteArray =
+        write(TYPE_NUMERIC_AGGREGATE, compress) { collector.writeCompact(it, compress) }
+
+    /**
+     * Serialize an aggregate list collector.
+     * @param compress whether to compress sample arrays.
+     */
+    @JvmStatic
+    @JvmOverloads
+    fun serialize(collector: AggregateListCollector, compress: Boolean = true): ByteArray =
+        write(TYPE_AGGREGATE_LIST, compress) { collector.writeCompact(it, compress) }
+
+    /**
+     * Deserialize a numeric aggregate collector.
+     * @throws IllegalArgumentException if the data is not a valid serialized collector.
+     */
+    @JvmStatic
+    fun deserializeNumericAggregate(data: ByteArray): NumericAggregateCollector =
+        read(data, TYPE_NUMERIC_AGGREGATE) { reader, compress ->
+            NumericAggregateCollector.readCompact(reader, compress)
+        }
+
+    /**
+     * Deserialize an aggregate list collector.
+     * @throws IllegalArgumentException if the data is not a valid serialized collector.
+     */
+    @JvmStatic
+    fun deserializeAggregateList(data: ByteArray): AggregateListCollector =
+        read(data, TYPE_AGGREGATE_LIST) { reader, compress ->
+            AggregateListCollector().apply { readCompact(reader, compress) }
+        }
+
+    private inline fun write(
+        type: Int,
+        compress: Boolean,
+        writeCollector: (CompactStateWriter) -> Unit,
+    ): ByteArray {
+        val writer = writers.get()
+        writer.reset()
+        writer.writeByte(VERSION)
+        writer.writeByte(if (compress) type or FLAG_COMPRESS else type)
+        writeCollector(writer)
+        return writer.toByteArray()
+    }
+
+    private inline fun <T> read(
+        data: ByteArray,
+        type: Int,
+        readCollector: (CompactStateReader, Boolean) -> T,
+    ): T {
+        val reader = CompactStateReader(data)
+        val version = reader.readByte()
+        require(version == VERSION) { "Unsupported collector state version $version" }
+        val header = reader.readByte()
+        require(header and FLAG_COMPRESS.inv() == type) {
+            "Collector state has type ${header and FLAG_COMPRESS.inv()}, not $type"
+        }
+        val result = readCollector(reader, header and FLAG_COMPRESS != 0)
+        require(reader.isAtEnd) { "Collector state has trailing data" }
+        return result
+    }
+}
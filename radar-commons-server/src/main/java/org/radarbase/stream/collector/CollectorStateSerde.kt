@@ -0,0 +1,61 @@
+package org.radarbase.stream.collector
+
+import org.apache.kafka.common.errors.SerializationException
+import org.apache.kafka.common.serialization.Deserializer
+import org.apache.kafka.common.serialization.Serde
+import org.apache.kafka.common.serialization.Serializer
+
+/**
+ * Kafka serde that stores collector state in the compact [CollectorStateFormat], for example in
+ * Kafka Streams state stores.
+ *
+ * @param compress whether to compress sample arrays.
+ */
+sealed class CollectorStateSerde<T : Any>(
+    private val compress: Boolean,
+) : Serde<T>, Serializer<T>, Deserializer<T> {
+    override fun serializer(): Serializer<T> = this
+
+    override fun deserializer(): Deserializer<T> = this
+
+    override fun serialize(topic: String?, data: T?): ByteArray? = data?.let { encode(it, compress) }
+
+    override fun deserialize(topic: String?, data: ByteArray?): T? {
+        data ?: return null
+        return try {
+            decode(data)
+        } catch (ex: IllegalArgumentException) {
+            throw SerializationException("Cannot deserialize collector state", ex)
+        }
+    }
+
+    protected abstract fun encode(data: T, compress: Boolean): ByteArray
+
+    protected abstract fun decode(data: ByteArray): T
+
+    override fun configure(configs: Map<String, *>, isKey: Boolean) = Unit
+
+    override fun close() = Unit
+}
+
+/** Serde for [NumericAggregateCollector] state in the compact [CollectorStateFormat]. */
+class NumericAggregateCollectorSerde @JvmOverloads constructor(
+    compress: Boolean = true,
+) : CollectorStateSerde<NumericAggregateCollector>(compress) {
+    override fun encode(data: NumericAggregateCollector, compress: Boolean): ByteArray =
+        CollectorStateFormat.serialize(data, compress)
+
+    override fun decode(data: ByteArray): NumericAggregateCollector =
+        CollectorStateFormat.deserializeNumericAggregate(data)
+}
+
+/** Serde for [AggregateListCollector] state in the compact [CollectorStateFormat]. */
+class AggregateListCollectorSerde @JvmOverloads constructor(
+    compress: Boolean = true,
+) : CollectorStateSerde<AggregateListCollector>(compress) {
+    override fun encode(data: AggregateListCollector, compress: Boolean): ByteArray =
+        CollectorStateFormat.serialize(data, compress)
+
+    override fun decode(data: ByteArray): AggregateListCollector =
+        CollectorStateFormat.deserializeAggregateList(data)
+}
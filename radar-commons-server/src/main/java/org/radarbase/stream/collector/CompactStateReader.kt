@@ -0,0 +1,106 @@
+package org.radarbase.stream.collector
+
+/**
+ * Reader of collector state in the compact binary format of [CollectorStateFormat].
+ * @throws IllegalArgumentException from read methods if the data is truncated or malformed.
+ */
+internal class CompactStateReader(
+    private val buffer: ByteArray,
+    offset: Int = 0,
+    private val end: Int = buffer.size,
+) {
+    private var position = offset
+
+    val isAtEnd: Boolean
+        get() = position == end
+
+    fun readByte(): Int {
+        checkAvailable(1)
+        return buffer[position++].toInt() and 0xFF
+    }
+
+    fun readVarLong(): Long {
+        var result = 0L
+        var shift = 0
+        while (shift < 64) {
+            val b = readByte()
+            result = result or ((b and 0x7F).toLong() shl shift)
+            if (b and 0x80 == 0) return result
+            shift += 7
+        }
+        throw IllegalArgumentException("Malformed variable-length number")
+    }
+
+    fun readVarInt(): Int {
+        val value = readVarLong()
+        if (value < 0 || value > Int.MAX_VALUE) {
+            throw IllegalArgumentException("Variable-length integer $value out of range")
+        }
+        return value.toInt()
+    }
+
+    fun readZigZag(): Long {
+        val value = readVarLong()
+        return value ushr 1 xor -(value and 1L)
+    }
+
+    fun readDouble(): Double {
+        checkAvailable(8)
+        return Double.fromBits(readLongBytes(8))
+    }
+
+    fun readBytes(): ByteArray {
+        val length = readVarInt()
+        checkAvailable(length)
+        return buffer.copyOfRange(position, position + length).also { position += length }
+    }
+
+    fun readString(): String {
+        val length = readVarInt()
+        checkAvailable(length)
+        return buffer.decodeToString(position, position + length).also { position += length }
+    }
+
+    /** Read a range of doubles, written with [CompactStateWriter.writeDoubles]. */
+    fun readDoubles(destination: DoubleArray, offset: Int, length: Int, compress: Boolean) {
+        if (!compress) {
+            checkAvailable(8 * length)
+            for (i in offset until offset + length) {
+                destination[i] = Double.fromBits(readLongBytes(8))
+            }
+            return
+        }
+        var previous = 0L
+        for (i in offset until offset + length) {
+            val header = readByte()
+            val xor = if (header.toByte() == CompactStateWriter.ZERO_XOR) {
+                0L
+            } else {
+                val leadingBytes = header ushr 4
+                val trailingBytes = header and 0x0F
+                val numBytes = 8 - leadingBytes - trailingBytes
+                if (numBytes <= 0) {
+                    throw IllegalArgumentException("Malformed compressed double header $header")
+                }
+                checkAvailable(numBytes)
+                readLongBytes(numBytes) shl 8 * trailingBytes
+            }
+            previous = previous xor xor
+            destination[i] = Double.fromBits(previous)
+        }
+    }
+
+    private fun readLongBytes(numBytes: Int): Long {
+        var result = 0L
+        repeat(numBytes) {
+            result = result shl 8 or (buffer[position++].toLong() and 0xFFL)
+        }
+        return result
+    }
+
+    private fun checkAvailable(numBytes: Int) {
+        if (numBytes < 0 || end - position < numBytes) {
+            throw IllegalArgumentException("Collector state is truncated")
+        }
+    }
+}
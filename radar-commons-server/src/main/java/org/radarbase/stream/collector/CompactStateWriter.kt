@@ -0,0 +1,110 @@
+package org.radarbase.stream.collector
+
+import java.lang.Long.numberOfLeadingZeros
+import java.lang.Long.numberOfTrailingZeros
+
+/**
+ * Growable byte buffer for writing collector state in the compact binary format of
+ * [CollectorStateFormat]. The buffer can be reused after [reset] to avoid allocations.
+ */
+internal class CompactStateWriter(initialCapacity: Int = 256) {
+    private var buffer = ByteArray(initialCapacity.coerceAtLeast(16))
+
+    /** Number of bytes written. */
+    var size = 0
+        private set
+
+    fun reset() {
+        size = 0
+    }
+
+    fun toByteArray(): ByteArray = buffer.copyOf(size)
+
+    fun writeByte(value: Int) {
+        ensureCapacity(1)
+        buffer[size++] = value.toByte()
+    }
+
+    /** Write an unsigned variable-length long, using 7 bits per byte. */
+    fun writeVarLong(value: Long) {
+        ensureCapacity(10)
+        var remaining = value
+        while (remaining and 0x7FL.inv() != 0L) {
+            buffer[size++] = (remaining and 0x7FL or 0x80L).toByte()
+            remaining = remaining ushr 7
+        }
+        buffer[size++] = remaining.toByte()
+    }
+
+    fun writeVarInt(value: Int) {
+        require(value >= 0) { "Cannot write negative value $value as unsigned integer" }
+        writeVarLong(value.toLong())
+    }
+
+    /** Write a signed variable-length long, using zig-zag encoding. */
+    fun writeZigZag(value: Long) = writeVarLong(value shl 1 xor (value shr 63))
+
+    fun writeDouble(value: Double) {
+        ensureCapacity(8)
+        writeLongBytes(value.toRawBits(), 8)
+    }
+
+    fun writeBytes(value: ByteArray) {
+        writeVarInt(value.size)
+        ensureCapacity(value.size)
+        value.copyInto(buffer, size)
+        size += value.size
+    }
+
+    fun writeString(value: String) = writeBytes(value.encodeToByteArray())
+
+    /**
+     * Write a range of doubles. If [compress] is true, each value is XOR-ed with the previous
+     * one and only the non-zero bytes of the result are written, after a header byte with the
+     * number of leading and trailing zero bytes. This is effective for sorted or slowly
+     * changing values, which share their sign, exponent and leading mantissa bits.
+     */
+    fun writeDoubles(values: DoubleArray, offset: Int, length: Int, compress: Boolean) {
+        if (!compress) {
+            ensureCapacity(8 * length)
+            for (i in offset until offset + length) {
+                writeLongBytes(values[i].toRawBits(), 8)
+            }
+            return
+        }
+        ensureCapacity(9 * length)
+        var previous = 0L
+        for (i in offset until offset + length) {
+            val bits = values[i].toRawBits()
+            val xor = bits xor previous
+            previous = bits
+            if (xor == 0L) {
+                buffer[size++] = ZERO_XOR
+            } else {
+                val leadingBytes = numberOfLeadingZeros(xor) / 8
+                val trailingBytes = numberOfTrailingZeros(xor) / 8
+                buffer[size++] = (leadingBytes shl 4 or trailingBytes).toByte()
+                writeLongBytes(xor ushr 8 * trailingBytes, 8 - leadingBytes - trailingBytes)
+            }
+        }
+    }
+
+    /** Write the lowest [numBytes] bytes of given value, most significant byte first. */
+    private fun writeLongBytes(value: Long, numBytes: Int) {
+        for (shift in numBytes - 1 downTo 0) {
+            buffer[size++] = (value ushr 8 * shift).toByte()
+        }
+    }
+
+    private fun ensureCapacity(extra: Int) {
+        val required = size + extra
+        if (required > buffer.size) {
+            buffer = buffer.copyOf(maxOf(required, buffer.size * 2))
+        }
+    }
+
+    companion object {
+        /** Header byte of a compressed double that is equal to the previous one. */
+        const val ZERO_XOR: Byte = 0x80.toByte()
+    }
+}
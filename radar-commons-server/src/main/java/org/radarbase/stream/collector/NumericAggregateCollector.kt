@@ -18,21 +18,31 @@ package org.radarbase.stream.collector
 import org.apache.avro.Schema
 import org.apache.avro.generic.IndexedRecord
 import org.apache.avro.specific.SpecificRecord
+import org.radarbase.data.ColumnarRecordData
+import org.radarbase.data.RecordData
 import org.radarbase.util.SpecificAvroConvertible
 import java.math.BigDecimal
 import java.math.BigDecimal.valueOf
 import java.math.BigInteger
+import java.math.MathContext
 import java.nio.ByteBuffer
 import java.util.Objects
+import kotlin.math.abs
 
 /**
  * Java class to aggregate data using Kafka Streams. Double is the base type.
  * Only the sum and sorted history are collected, other getSamples are calculated on request.
+ *
+ * @param summation how to compute the sum of the samples.
+ * @param useDigest whether to keep a [TDigest] quantile sketch of the samples. This gives more
+ * accurate quantiles than the sampling reservoir in bounded memory.
  */
 class NumericAggregateCollector @JvmOverloads constructor(
     var name: String? = null,
     schema: Schema? = null,
     useReservoir: Boolean = false,
+    val summation: Summation = Summation.EXACT,
+    useDigest: Boolean = false,
 ) : RecordCollector, SpecificAvroConvertible {
     private var pos = 0
     private var fieldType: Schema.Type? = null
@@ -43,8 +53,16 @@ class NumericAggregateCollector @JvmOverloads constructor(
     var count: Long = 0
         private set
     private var sum: BigDecimal
+
+    /** Running sum in [Summation.COMPENSATED] mode. */
+    private var doubleSum: Double = 0.0
+
+    /** Running compensation of lost low-order bits in [Summation.COMPENSATED] mode. */
+    private var compensation: Double = 0.0
     var reservoir: UniformSamplingReservoir?
         private set
+    var digest: TDigest?
+        private set
 
     /** Aggregate collector with only a field name.  */
     constructor(fieldName: String?, useReservoir: Boolean) : this(fieldName, null, useReservoir)
@@ -55,6 +73,7 @@ class NumericAggregateCollector @JvmOverloads constructor(
         min = Double.POSITIVE_INFINITY
         max = Double.NEGATIVE_INFINITY
         reservoir = if (useReservoir) UniformSamplingReservoir() else null
+        digest = if (useDigest) TDigest() else null
         if (schema == null) {
             pos = -1
             fieldType = null
@@ -69,18 +88,156 @@ class NumericAggregateCollector @JvmOverloads constructor(
     }
 
     override fun add(record: IndexedRecord): NumericAggregateCollector {
-        check(pos != -1) { "Cannot add record without specifying a schema in the constructor." }
+        checkSchema()
         val value = record[pos] as? Number ?: return this
         return if (fieldType == Schema.Type.FLOAT) {
-            add(value as Float)
+            add(value.toFloat())
         } else {
             add(value.toDouble())
         }
     }
 
-    /** Add a single sample.  */
-    fun add(value: Float): NumericAggregateCollector {
-        return add(value.toString().toDouble())
+    /**
+     * Add all records in a batch. Values are collected into a primitive buffer and added with
+     * [addAll] over a double array. If the records are [ColumnarRecordData] in which the field
+     * has the same position and numeric type, the field column is read directly without
+     * materializing any records.
+     * @throws IllegalStateException if this collector was constructed without a schema.
+     */
+    override fun addAll(records: Iterable<IndexedRecord>): NumericAggregateCollector {
+        checkSchema()
+        if (records is ColumnarRecordData<*, *> && isColumnOf(records)) {
+            addColumn(records)
+            return this
+        }
+        val batchSize = batchSize(records)
+        if (batchSize == 0) return this
+        val buffer = DoubleArray(batchSize)
+        var length = 0
+        for (record in records) {
+            if (!readValue(record, buffer, length)) continue
+            length++
+            if (length == buffer.size) {
+                addAll(buffer, 0, length)
+                length = 0
+            }
+        }
+        return addAll(buffer, 0, length)
+    }
+
+    /** @throws IllegalStateException if this collector was constructed without a schema. */
+    internal fun checkSchema() {
+        check(pos != -1) { "Cannot add record without specifying a schema in the constructor." }
+    }
+
+    /**
+     * Read the field of this collector from [record] into [buffer] at [index], converted in the
+     * same way as [add] would.
+     * @return whether the field had a value.
+     */
+    internal fun readValue(record: IndexedRecord, buffer: DoubleArray, index: Int): Boolean {
+        val value = record[pos] as? Number ?: return false
+        buffer[index] = if (fieldType == Schema.Type.FLOAT) {
+            floatToDouble(value.toFloat())
+        } else {
+            value.toDouble()
+        }
+        return true
+    }
+
+    /** Whether the field of this collector is stored as a numeric column in [records]. */
+    internal fun isColumnOf(records: ColumnarRecordData<*, *>): Boolean {
+        val field = records.topic.valueSchema.getField(name) ?: return false
+        return field.pos() == pos && field.schema().type == fieldType
+    }
+
+    private fun addColumn(records: ColumnarRecordData<*, *>) {
+        val size = records.size()
+        val buffer = DoubleArray(size.coerceAtMost(BATCH_SIZE))
+        var start = 0
+        while (start < size) {
+            val end = (start + buffer.size).coerceAtMost(size)
+            records.copyDoubles(pos, buffer, 0, start, end)
+            val length = end - start
+            if (fieldType == Schema.Type.FLOAT && summation == Summation.EXACT) {
+                for (i in 0 until length) {
+                    buffer[i] = floatToDouble(buffer[i].toFloat())
+                }
+            }
+            addAll(buffer, 0, length)
+            start = end
+        }
+    }
+
+    /**
+     * Add a range of samples. Minimum, maximum, sum and count are updated in a single pass over
+     * the array, and the reservoir is filled in one batch.
+     * @param values samples to add.
+     * @param offset index of the first sample to add.
+     * @param length number of samples to add.
+     * @throws IndexOutOfBoundsException if the range is not contained in [values].
+     */
+    @JvmOverloads
+    fun addAll(
+        values: DoubleArray,
+        offset: Int = 0,
+        length: Int = values.size - offset,
+    ): NumericAggregateCollector {
+        Objects.checkFromIndexSize(offset, length, values.size)
+        if (length == 0) return this
+        val end = offset + length
+        var batchMin = min
+        var batchMax = max
+        for (i in offset until end) {
+            val value = values[i]
+            if (value > batchMax) {
+                batchMax = value
+            }
+            if (value < batchMin) {
+                batchMin = value
+            }
+        }
+        min = batchMin
+        max = batchMax
+
+        if (summation == Summation.EXACT) {
+            var batchSum = sum
+            for (i in offset until end) {
+                batchSum = batchSum.add(values[i].toBigDecimal())
+            }
+            sum = batchSum
+        } else {
+            var batchSum = doubleSum
+            var batchCompensation = compensation
+            for (i in offset until end) {
+                val value = values[i]
+                val total = batchSum + value
+                batchCompensation += if (abs(batchSum) >= abs(value)) {
+                    batchSum - total + value
+                } else {
+                    value - total + batchSum
+                }
+                batchSum = total
+            }
+            doubleSum = batchSum
+            compensation = batchCompensation
+        }
+        reservoir?.addAll(values, offset, length)
+        digest?.addAll(values, offset, length)
+        count += length
+        return this
+    }
+
+    /**
+     * Add a single sample. In [Summation.EXACT] mode, the float is converted to the double with
+     * the same decimal representation; in [Summation.COMPENSATED] mode it is widened directly.
+     */
+    fun add(value: Float): NumericAggregateCollector = add(floatToDouble(value))
+
+    private fun floatToDouble(value: Float): Double = if (summation == Summation.EXACT) {
+        value.toString().toDouble()
+    } else {
+        value.toDouble()
     }
 
     /**
@@ -88,8 +245,13 @@ class NumericAggregateCollector @JvmOverloads constructor(
      * @param value new sample that has to be analysed
      */
     fun add(value: Double): NumericAggregateCollector {
-        sum = sum.add(value.toBigDecimal())
+        if (summation == Summation.EXACT) {
+            sum = sum.add(value.toBigDecimal())
+        } else {
+            addCompensated(value)
+        }
         reservoir?.add(value)
+        digest?.add(value)
         if (value > max) {
             max = value
         }
@@ -100,6 +262,47 @@ class NumericAggregateCollector @JvmOverloads constructor(
         return this
     }
 
+    /**
+     * Merge the samples of another collector into this one, as if they had been added to this
+     * collector. This allows aggregating parts of a stream independently, for example per
+     * thread or per partition, and combining the results. The other collector is not modified.
+     * @throws IllegalArgumentException if only one of the collectors has a reservoir or a
+     * digest.
+     */
+    fun merge(other: NumericAggregateCollector): NumericAggregateCollector {
+        require(hasReservoir() == other.hasReservoir()) {
+            "Cannot merge collectors with and without a sampling reservoir"
+        }
+        require(hasDigest() == other.hasDigest()) {
+            "Cannot merge collectors with and without a digest"
+        }
+        if (other.count == 0L) return this
+        when {
+            summation == Summation.EXACT -> sum = sum.add(other.exactSum())
+            other.summation == Summation.COMPENSATED -> {
+                addCompensated(other.doubleSum)
+                addCompensated(other.compensation)
+            }
+            else -> {
+                val otherSum = other.sum.toDouble()
+                addCompensated(otherSum)
+                if (otherSum.isFinite()) {
+                    addCompensated(other.sum.subtract(BigDecimal(otherSum)).toDouble())
+                }
+            }
+        }
+        if (count == 0L || other.min < min) {
+            min = other.min
+        }
+        if (count == 0L || other.max > max) {
+            max = other.max
+        }
+        count += other.count
+        reservoir?.merge(other.reservoir!!)
+        digest?.merge(other.digest!!)
+        return this
+    }
+
     override fun toString(): String {
         return (
             "DoubleValueCollector{" +
@@ -110,28 +313,80 @@ class NumericAggregateCollector @JvmOverloads constructor(
                 ", mean=" + mean +
                 ", quartile=" + quartile +
                 ", count=" + count +
-                ", reservoir=" + reservoir + '}'
+                ", reservoir=" + reservoir +
+                ", digest=" + digest + '}'
             )
     }
 
-    fun getSum(): Double {
-        return sum.toDouble()
+    /**
+     * Neumaier's variant of Kahan summation. The error of the sum is bounded by about
+     * 2 ε Σ|xᵢ|, independent of the number of samples, where ε is the double machine epsilon.
+     */
+    private fun addCompensated(value: Double) {
+        val total = doubleSum + value
+        compensation += if (abs(doubleSum) >= abs(value)) {
+            doubleSum - total + value
+        } else {
+            value - total + doubleSum
+        }
+        doubleSum = total
+    }
+
+    fun getSum(): Double = if (summation == Summation.EXACT) {
+        sum.toDouble()
+    } else {
+        val total = doubleSum + compensation
+        // the compensation of an infinite sum is NaN, the plain running sum is still correct
+        if (total.isNaN() && doubleSum.isInfinite()) doubleSum else total
     }
 
     val mean: Double
-        get() = sum.toDouble() / count
+        get() = getSum() / count
+
+    /**
+     * Value of the current sum. In [Summation.COMPENSATED] mode, this is rounded to the 34 digits
+     * of [MathContext.DECIMAL128], which is well beyond the precision of the compensated sum.
+     */
+    private fun exactSum(): BigDecimal = if (summation == Summation.EXACT) {
+        sum
+    } else {
+        check(hasFiniteSum()) { "Cannot represent non-finite sum ${getSum()} exactly" }
+        BigDecimal(doubleSum).add(BigDecimal(compensation), MathContext.DECIMAL128)
+    }
+
+    /**
+     * Whether the sum is finite. In [Summation.COMPENSATED] mode, the sum is NaN or infinite if
+     * a NaN or infinite sample was added, or if the sum overflowed.
+     */
+    private fun hasFiniteSum(): Boolean = summation == Summation.EXACT ||
+        (doubleSum.isFinite() && compensation.isFinite())
 
     /** Has a sampling reservoir.  */
     fun hasReservoir(): Boolean = reservoir != null
 
+    /** Has a t-digest quantile sketch. */
+    fun hasDigest(): Boolean = digest != null
+
     val quartile: List<Double>
         /**
-         * Get the quartiles as estimated from a uniform sampling reservoir.
-         * @throws IllegalStateException if the collector does not keep a sampling reservoir, as
-         * indicated by [.hasReservoir].
+         * Get the quartiles as estimated from a uniform sampling reservoir, or if the collector
+         * has no reservoir, from the t-digest.
+         * @throws IllegalStateException if the collector does not keep a sampling reservoir or a
+         * digest, as indicated by [.hasReservoir] and [.hasDigest].
          */
-        get() = checkNotNull(reservoir) { "Cannot query quartiles without reservoir" }
-            .quartiles
+        get() = reservoir?.quartiles
+            ?: checkNotNull(digest) { "Cannot query quartiles without reservoir or digest" }
+                .quartiles
+
+    /**
+     * Estimate a quantile of the samples from the t-digest.
+     * @param q quantile, between 0 and 1 inclusive.
+     * @throws IllegalStateException if the collector does not keep a digest, as indicated by
+     * [.hasDigest].
+     * @throws IllegalArgumentException if q is not between 0 and 1.
+     */
+    fun quantile(q: Double): Double = checkNotNull(digest) { "Cannot query quantiles without digest" }
+        .quantile(q)
     val interQuartileRange: Double
         /**
          * Difference between the first quartile and third quartile (IQR).
@@ -158,12 +413,24 @@ class NumericAggregateCollector @JvmOverloads constructor(
             max == other.max &&
             name == other.name &&
             fieldType == other.fieldType &&
-            sum == other.sum &&
-            reservoir == other.reservoir
+            summation == other.summation &&
+            sumEquals(other) &&
+            reservoir == other.reservoir &&
+            digest == other.digest
+    }
+
+    /** Whether the sums are equal, exactly in [Summation.EXACT] mode. */
+    private fun sumEquals(other: NumericAggregateCollector): Boolean = if (summation == Summation.EXACT) {
+        sum.compareTo(other.sum) == 0
+    } else {
+        // also equal if both sums are NaN
+        getSum().compareTo(other.getSum()) == 0
     }
 
     override fun hashCode(): Int {
-        return Objects.hash(name, pos, fieldType, min, max, sum, reservoir)
+        // equal exact sums may differ in scale
+        val sumValue: Any = if (summation == Summation.EXACT) sum.stripTrailingZeros() else getSum()
+        return Objects.hash(name, pos, fieldType, min, max, summation, sumValue, reservoir, digest)
     }
 
     override fun toAvro(): SpecificRecord {
@@ -172,14 +439,22 @@ class NumericAggregateCollector @JvmOverloads constructor(
         if (count > 0) {
             state.min = min
             state.max = max
-            state.sum = BigDecimalState(
-                ByteBuffer.wrap(sum.unscaledValue().toByteArray()),
-                sum.scale(),
-            )
+            if (hasFiniteSum()) {
+                val sum = exactSum()
+                state.sum = BigDecimalState(
+                    ByteBuffer.wrap(sum.unscaledValue().toByteArray()),
+                    sum.scale(),
+                )
+                state.nonFiniteSum = null
+            } else {
+                state.sum = null
+                state.nonFiniteSum = getSum()
+            }
         } else {
             state.min = null
             state.max = null
             state.sum = null
+            state.nonFiniteSum = null
         }
         if (pos != -1) {
             state.pos = pos
@@ -190,6 +465,7 @@ class NumericAggregateCollector @JvmOverloads constructor(
         }
         state.name = name
         state.reservoir = reservoir?.toAvro()
+        state.digest = digest?.toAvro()
         return state
     }
 
@@ -207,25 +483,169 @@ class NumericAggregateCollector @JvmOverloads constructor(
         if (count > 0) {
             min = record.min
             max = record.max
-            sum = BigDecimal(
-                BigInteger(record.sum.intVal.array()),
-                record.sum.scale,
-            )
+            val nonFiniteSum = record.nonFiniteSum
+            if (nonFiniteSum != null) {
+                require(summation == Summation.COMPENSATED) {
+                    "Cannot restore non-finite sum $nonFiniteSum with exact summation"
+                }
+                doubleSum = nonFiniteSum
+                compensation = 0.0
+            } else {
+                setSum(
+                    BigDecimal(
+                        BigInteger(record.sum.intVal.array()),
+                        record.sum.scale,
+                    ),
+                )
+            }
         } else {
             min = Double.MAX_VALUE
             max = Double.MIN_VALUE
-            sum = BigDecimal.ZERO
+            setSum(BigDecimal.ZERO)
         }
         reservoir = if (record.reservoir == null) {
             null
         } else {
-            UniformSamplingReservoir(DoubleArray(0), 0, 1).apply {
+            // the Avro state does not store whether sorting is deferred, so keep the current setting
+            UniformSamplingReservoir(DoubleArray(0), 0, 1, reservoir?.deferSort ?: false).apply {
                 fromAvro(record.reservoir)
             }
         }
+        digest = record.digest?.let { state ->
+            TDigest().apply { fromAvro(state) }
+        }
+    }
+
+    /** Write the collector in the compact binary format of [CollectorStateFormat]. */
+    internal fun writeCompact(writer: CompactStateWriter, compress: Boolean) {
+        val name = name
+        val reservoir = reservoir
+        val digest = digest
+        var flags = 0
+        if (summation == Summation.COMPENSATED) flags = flags or FLAG_COMPENSATED
+        if (name != null) flags = flags or FLAG_NAME
+        if (pos != -1) flags = flags or FLAG_FIELD
+        if (reservoir != null) flags = flags or FLAG_RESERVOIR
+        if (reservoir?.deferSort == true) flags = flags or FLAG_DEFER_SORT
+        if (digest != null) flags = flags or FLAG_DIGEST
+        writer.writeByte(flags)
+        if (name != null) {
+            writer.writeString(name)
+        }
+        if (pos != -1) {
+            writer.writeVarInt(pos)
+            writer.writeString(fieldType!!.name)
+        }
+        writer.writeVarLong(count)
+        if (count > 0) {
+            writer.writeDouble(min)
+            writer.writeDouble(max)
+            if (summation == Summation.EXACT) {
+                writer.writeZigZag(sum.scale().toLong())
+                writer.writeBytes(sum.unscaledValue().toByteArray())
+            } else {
+                writer.writeDouble(doubleSum)
+                writer.writeDouble(compensation)
+            }
+        }
+        reservoir?.writeCompact(writer, compress)
+        digest?.writeCompact(writer, compress)
+    }
+
+    private fun readCompact(reader: CompactStateReader, flags: Int, compress: Boolean) {
+        name = if (flags and FLAG_NAME != 0) reader.readString() else null
+        if (flags and FLAG_FIELD != 0) {
+            pos = reader.readVarInt()
+            fieldType = Schema.Type.valueOf(reader.readString())
+        } else {
+            pos = -1
+            fieldType = null
+        }
+        count = reader.readVarLong()
+        if (count > 0) {
+            min = reader.readDouble()
+            max = reader.readDouble()
+            if (summation == Summation.EXACT) {
+                val scale = reader.readZigZag().toInt()
+                sum = BigDecimal(BigInteger(reader.readBytes()), scale)
+            } else {
+                doubleSum = reader.readDouble()
+                compensation = reader.readDouble()
+            }
+        }
+        reservoir = if (flags and FLAG_RESERVOIR != 0) {
+            UniformSamplingReservoir(DoubleArray(0), 0, 1, flags and FLAG_DEFER_SORT != 0).apply {
+                readCompact(reader, compress)
+            }
+        } else {
+            null
+        }
+        digest = if (flags and FLAG_DIGEST != 0) {
+            TDigest().apply { readCompact(reader, compress) }
+        } else {
+            null
+        }
+    }
+
+    private fun setSum(value: BigDecimal) {
+        if (summation == Summation.EXACT) {
+            sum = value
+        } else {
+            doubleSum = value.toDouble()
+            compensation = value.subtract(BigDecimal(doubleSum)).toDouble()
+        }
+    }
+
+    /** Method of computing the sum of samples. */
+    enum class Summation {
+        /**
+         * Sum samples in a BigDecimal. This gives an exact sum of the decimal representation
+         * of each sample, at the cost of allocating a BigDecimal for each sample.
+         */
+        EXACT,
+
+        /**
+         * Sum samples in doubles with Neumaier's compensated summation. This does not allocate
+         * per sample and has an error bounded by about 2 ε Σ|xᵢ|, where ε is the double machine
+         * epsilon. Floats are widened to double directly.
+         */
+        COMPENSATED,
     }
 
     companion object {
+        /** Maximum number of samples that are buffered when adding records in bulk. */
+        private const val BATCH_SIZE = 256
+
+        /** Size of the sample buffer to add [records] in bulk with, zero if there are none. */
+        internal fun batchSize(records: Iterable<IndexedRecord>): Int {
+            val expectedSize = when (records) {
+                is Collection<*> -> records.size
+                is RecordData<*, *> -> records.size()
+                else -> BATCH_SIZE
+            }
+            return expectedSize.coerceAtMost(BATCH_SIZE)
+        }
+
+        private const val FLAG_COMPENSATED = 0x01
+        private const val FLAG_NAME = 0x02
+        private const val FLAG_FIELD = 0x04
+        private const val FLAG_RESERVOIR = 0x08
+        private const val FLAG_DIGEST = 0x10
+        private const val FLAG_DEFER_SORT = 0x20
+
+        /** Read a collector from the compact binary format of [CollectorStateFormat]. */
+        internal fun readCompact(reader: CompactStateReader, compress: Boolean): NumericAggregateCollector {
+            val flags = reader.readByte()
+            val summation = if (flags and FLAG_COMPENSATED != 0) {
+                Summation.COMPENSATED
+            } else {
+                Summation.EXACT
+            }
+            return NumericAggregateCollector(summation = summation).apply {
+                readCompact(reader, flags, compress)
+            }
+        }
+
         /**
          * Get the non-null number type for a given field. If the tye is a union, it will use the first
          * non-null type in the union.
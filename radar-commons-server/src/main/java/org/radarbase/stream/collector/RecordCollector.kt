@@ -9,4 +9,15 @@ interface RecordCollector {
      * @throws IllegalStateException if this collector was constructed without a schema.
      */
     fun add(record: IndexedRecord): RecordCollector
+
+    /**
+     * Add all records in a batch. Implementations may override this to process the batch more
+     * efficiently than adding records one by one.
+     * @param records new samples that have to be analysed
+     * @throws IllegalStateException if this collector was constructed without a schema.
+     */
+    fun addAll(records: Iterable<IndexedRecord>): RecordCollector {
+        records.forEach { add(it) }
+        return this
+    }
 }
@@ -0,0 +1,395 @@
+package org.radarbase.stream.collector
+
+import org.apache.avro.specific.SpecificRecord
+import org.radarbase.util.SpecificAvroConvertible
+import java.util.Objects
+import kotlin.math.PI
+import kotlin.math.asin
+import kotlin.math.ceil
+import kotlin.math.min
+import kotlin.math.roundToLong
+import kotlin.math.sin
+
+/**
+ * Quantile sketch for streaming, using the merging variant of the t-digest by Ted Dunning.
+ * Samples are clustered into centroids, where clusters near the tails of the distribution are
+ * kept small. This gives accurate estimates of extreme quantiles with a memory footprint that
+ * is bounded by the [compression] parameter, independent of the number of samples.
+ *
+ * New samples are buffered and merged into the centroids once the buffer is full, so adding a
+ * sample takes amortized O(log n) time. Unlike [UniformSamplingReservoir], estimates do not
+ * depend on random sampling.
+ *
+ * This class is not thread-safe.
+ *
+ * @param compression maximum number of centroids is about twice this value. Higher values give
+ * more accurate quantiles at the cost of memory.
+ */
+class TDigest @JvmOverloads constructor(
+    compression: Double = COMPRESSION_DEFAULT,
+) : SpecificAvroConvertible {
+    /** Compression parameter of this digest. */
+    var compression: Double = compression
+        private set
+
+    /** Get the number of samples that are represented by the digest. */
+    var count: Long = 0
+        private set
+
+    /** Minimum sample, or positive infinity if no samples were added. */
+    var min: Double = Double.POSITIVE_INFINITY
+        private set
+
+    /** Maximum sample, or negative infinity if no samples were added. */
+    var max: Double = Double.NEGATIVE_INFINITY
+        private set
+
+    private var means = DoubleArray(0)
+    private var weights = DoubleArray(0)
+    private var centroidCount = 0
+    private var buffer = DoubleArray(0)
+    private var bufferLength = 0
+
+    init {
+        initialize(compression)
+    }
+
+    private fun initialize(initCompression: Double) {
+        require(initCompression >= 10.0) { "Compression must be at least 10" }
+        compression = initCompression
+        val capacity = ceil(2 * initCompression).toInt() + 10
+        means = DoubleArray(capacity)
+        weights = DoubleArray(capacity)
+        centroidCount = 0
+        buffer = DoubleArray(capacity * 5)
+        bufferLength = 0
+    }
+
+    /** Add a sample to the digest. NaN samples are ignored. */
+    fun add(value: Double) {
+        if (value.isNaN()) return
+        if (value < min) {
+            min = value
+        }
+        if (value > max) {
+            max = value
+        }
+        buffer[bufferLength++] = value
+        count++
+        if (bufferLength == buffer.size) {
+            flush()
+        }
+    }
+
+    /**
+     * Add a range of samples to the digest. NaN samples are ignored.
+     * @throws IndexOutOfBoundsException if the range is not contained in [values].
+     */
+    @JvmOverloads
+    fun addAll(values: DoubleArray, offset: Int = 0, length: Int = values.size - offset) {
+        Objects.checkFromIndexSize(offset, length, values.size)
+        for (i in offset until offset + length) {
+            add(values[i])
+        }
+    }
+
+    /**
+     * Merge another digest into this one, as if all samples represented by [other] had been
+     * added to this digest. The other digest is not modified.
+     */
+    fun merge(other: TDigest): TDigest {
+        if (other.count == 0L) return this
+        flush()
+        val otherBuffer = other.buffer.copyOf(other.bufferLength)
+        otherBuffer.sort()
+        val otherWeights = DoubleArray(otherBuffer.size) { 1.0 }
+        val otherLength = other.centroidCount + otherBuffer.size
+        val otherMeans = DoubleArray(otherLength)
+        val otherMergedWeights = DoubleArray(otherLength)
+        mergeSorted(
+            other.means, other.weights, other.centroidCount,
+            otherBuffer, otherWeights, otherBuffer.size,
+            otherMeans, otherMergedWeights,
+        )
+        compress(otherMeans, otherMergedWeights, otherLength)
+        if (other.min < min) {
+            min = other.min
+        }
+        if (other.max > max) {
+            max = other.max
+        }
+        count += other.count
+        return this
+    }
+
+    /**
+     * Estimate a quantile of the distribution.
+     * @param q quantile, between 0 and 1 inclusive.
+     * @return estimated value, or NaN if no samples were added.
+     * @throws IllegalArgumentException if q is not between 0 and 1.
+     */
+    fun quantile(q: Double): Double {
+        require(q in 0.0..1.0) { "Quantile $q must be between 0 and 1" }
+        flush()
+        if (centroidCount == 0) return Double.NaN
+        if (centroidCount == 1) return means[0]
+
+        val totalWeight = count.toDouble()
+        val index = q * totalWeight
+        if (index < 1) return min
+        if (index > totalWeight - 1) return max
+
+        // interpolate between the minimum and the center of the first centroid
+        val firstHalf = weights[0] / 2
+        if (weights[0] > 1 && index < firstHalf) {
+            return min + (index - 1) / (firstHalf - 1) * (means[0] - min)
+        }
+        // interpolate between the center of the last centroid and the maximum
+        val last = centroidCount - 1
+        val lastHalf = weights[last] / 2
+        if (weights[last] > 1 && totalWeight - index <= lastHalf) {
+            return max - (totalWeight - index - 1) / (lastHalf - 1) * (max - means[last])
+        }
+
+        var weightSoFar = firstHalf
+        for (i in 0 until last) {
+            val deltaWeight = (weights[i] + weights[i + 1]) / 2
+            if (weightSoFar + deltaWeight > index) {
+                // singleton centroids represent an exact sample, so do not interpolate near them
+                var leftUnit = 0.0
+                if (weights[i] == 1.0) {
+                    if (index - weightSoFar < 0.5) return means[i]
+                    leftUnit = 0.5
+                }
+                var rightUnit = 0.0
+                if (weights[i + 1] == 1.0) {
+                    if (weightSoFar + deltaWeight - index <= 0.5) return means[i + 1]
+                    rightUnit = 0.5
+                }
+                val leftDistance = index - weightSoFar - leftUnit
+                val rightDistance = weightSoFar + deltaWeight - index - rightUnit
+                return (means[i] * rightDistance + means[i + 1] * leftDistance) /
+                    (leftDistance + rightDistance)
+            }
+            weightSoFar += deltaWeight
+        }
+        return means[last]
+    }
+
+    val quartiles: List<Double>
+        /**
+         * Get the quartiles of the underlying distribution.
+         * @return list with size three, of the 25, 50 and 75 percentiles.
+         */
+        get() = listOf(quantile(0.25), quantile(0.5), quantile(0.75))
+
+    /** Number of centroids that the digest currently uses. */
+    val size: Int
+        get() {
+            flush()
+            return centroidCount
+        }
+
+    /** Merge buffered samples into the centroids. */
+    private fun flush() {
+        if (bufferLength == 0) return
+        buffer.sort(0, bufferLength)
+        val ones = DoubleArray(bufferLength) { 1.0 }
+        val length = bufferLength
+        bufferLength = 0
+        compress(buffer, ones, length)
+    }
+
+    /**
+     * Merge given sorted centroids with the current centroids and cluster them such that each
+     * centroid spans at most one unit of the scale function.
+     */
+    private fun compress(newMeans: DoubleArray, newWeights: DoubleArray, newLength: Int) {
+        val length = centroidCount + newLength
+        val sortedMeans = DoubleArray(length)
+        val sortedWeights = DoubleArray(length)
+        mergeSorted(
+            means, weights, centroidCount,
+            newMeans, newWeights, newLength,
+            sortedMeans, sortedWeights,
+        )
+        val totalWeight = sortedWeights.sum()
+
+        var resultLength = 0
+        var currentMean = sortedMeans[0]
+        var currentWeight = sortedWeights[0]
+        var weightSoFar = 0.0
+        var weightLimit = totalWeight * quantileLimit(0.0)
+        for (i in 1 until length) {
+            val proposedWeight = currentWeight + sortedWeights[i]
+            if (weightSoFar + proposedWeight <= weightLimit) {
+                currentWeight = proposedWeight
+                currentMean += (sortedMeans[i] - currentMean) * sortedWeights[i] / currentWeight
+            } else {
+                means[resultLength] = currentMean
+                weights[resultLength] = currentWeight
+                resultLength++
+                weightSoFar += currentWeight
+                weightLimit = totalWeight * quantileLimit(weightSoFar / totalWeight)
+                currentMean = sortedMeans[i]
+                currentWeight = sortedWeights[i]
+            }
+        }
+        means[resultLength] = currentMean
+        weights[resultLength] = currentWeight
+        centroidCount = resultLength + 1
+    }
+
+    /**
+     * Largest quantile that a centroid starting at quantile [q] may reach, using the scale
+     * function k(q) = compression / (2 pi) * asin(2q - 1).
+     */
+    private fun quantileLimit(q: Double): Double {
+        val k = compression / (2 * PI) * asin((2 * q - 1).coerceIn(-1.0, 1.0)) + 1
+        return (sin(min(k * 2 * PI / compression, PI / 2)) + 1) / 2
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (this === other) {
+            return true
+        }
+        if (javaClass != other?.javaClass) {
+            return false
+        }
+        other as TDigest
+        flush()
+        other.flush()
+        return count == other.count &&
+            compression == other.compression &&
+            min == other.min &&
+            max == other.max &&
+            means.copyOf(centroidCount).contentEquals(other.means.copyOf(other.centroidCount)) &&
+            weights.copyOf(centroidCount).contentEquals(other.weights.copyOf(other.centroidCount))
+    }
+
+    override fun hashCode(): Int {
+        flush()
+        var result = means.copyOf(centroidCount).contentHashCode()
+        result = 31 * result + compression.hashCode()
+        result = 31 * result + count.hashCode()
+        return result
+    }
+
+    override fun toString(): String {
+        flush()
+        return "TDigest{" +
+            "compression=$compression, " +
+            "count=$count, " +
+            "min=$min, " +
+            "max=$max, " +
+            "centroids=$centroidCount}"
+    }
+
+    override fun toAvro(): TDigestState {
+        flush()
+        return TDigestState().apply {
+            this.compression = this@TDigest.compression
+            this.min = this@TDigest.min
+            this.max = this@TDigest.max
+            this.means = this@TDigest.means.copyOf(centroidCount).asList()
+            this.weights = this@TDigest.weights.copyOf(centroidCount).asList()
+        }
+    }
+
+    override fun fromAvro(record: SpecificRecord) {
+        require(record is TDigestState) { "Cannot initialize from non-TDigestState" }
+        val stateMeans = requireNotNull(record.means) { "Means may not be null" }
+        val stateWeights = requireNotNull(record.weights) { "Weights may not be null" }
+        restore(
+            record.compression,
+            record.min,
+            record.max,
+            stateMeans.toDoubleArray(),
+            stateWeights.toDoubleArray(),
+        )
+    }
+
+    /** Write the digest in the compact binary format of [CollectorStateFormat]. */
+    internal fun writeCompact(writer: CompactStateWriter, compress: Boolean) {
+        flush()
+        writer.writeDouble(compression)
+        writer.writeDouble(min)
+        writer.writeDouble(max)
+        writer.writeVarInt(centroidCount)
+        writer.writeDoubles(means, 0, centroidCount, compress)
+        writer.writeDoubles(weights, 0, centroidCount, compress)
+    }
+
+    /** Read the digest from the compact binary format of [CollectorStateFormat]. */
+    internal fun readCompact(reader: CompactStateReader, compress: Boolean) {
+        val stateCompression = reader.readDouble()
+        val stateMin = reader.readDouble()
+        val stateMax = reader.readDouble()
+        val length = reader.readVarInt()
+        val stateMeans = DoubleArray(length)
+        reader.readDoubles(stateMeans, 0, length, compress)
+        val stateWeights = DoubleArray(length)
+        reader.readDoubles(stateWeights, 0, length, compress)
+        restore(stateCompression, stateMin, stateMax, stateMeans, stateWeights)
+    }
+
+    /** Replace the state of this digest by given sorted centroids. */
+    private fun restore(
+        stateCompression: Double,
+        stateMin: Double,
+        stateMax: Double,
+        stateMeans: DoubleArray,
+        stateWeights: DoubleArray,
+    ) {
+        require(stateMeans.size == stateWeights.size) { "Means and weights must have the same size" }
+        initialize(stateCompression)
+        min = stateMin
+        max = stateMax
+        count = stateWeights.sum().roundToLong()
+        if (stateMeans.isEmpty()) return
+        if (stateMeans.size <= means.size) {
+            stateMeans.copyInto(means)
+            stateWeights.copyInto(weights)
+            centroidCount = stateMeans.size
+        } else {
+            compress(stateMeans, stateWeights, stateMeans.size)
+        }
+    }
+
+    companion object {
+        private const val COMPRESSION_DEFAULT = 100.0
+
+        /** Merge two sorted centroid lists into a sorted destination. */
+        private fun mergeSorted(
+            aMeans: DoubleArray,
+            aWeights: DoubleArray,
+            aLength: Int,
+            bMeans: DoubleArray,
+            bWeights: DoubleArray,
+            bLength: Int,
+            destinationMeans: DoubleArray,
+            destinationWeights: DoubleArray,
+        ) {
+            var a = 0
+            var b = 0
+            var i = 0
+            while (a < aLength && b < bLength) {
+                if (aMeans[a] <= bMeans[b]) {
+                    destinationMeans[i] = aMeans[a]
+                    destinationWeights[i++] = aWeights[a++]
+                } else {
+                    destinationMeans[i] = bMeans[b]
+                    destinationWeights[i++] = bWeights[b++]
+                }
+            }
+            while (a < aLength) {
+                destinationMeans[i] = aMeans[a]
+                destinationWeights[i++] = aWeights[a++]
+            }
+            while (b < bLength) {
+                destinationMeans[i] = bMeans[b]
+                destinationWeights[i++] = bWeights[b++]
+            }
+        }
+    }
+}
@@ -3,22 +3,35 @@ package org.radarbase.stream.collector
 import com.fasterxml.jackson.annotation.JsonGetter
 import org.apache.avro.specific.SpecificRecord
 import org.radarbase.util.SpecificAvroConvertible
+import java.util.Arrays
+import java.util.Objects
+import kotlin.math.exp
+import kotlin.math.floor
+import kotlin.math.ln
+import kotlin.math.ln1p
 import kotlin.math.min
 import kotlin.random.Random
 
 /**
  * Uniform sampling reservoir for streaming. This should capture the input distribution in order
- * to compute quartiles, using so-called Algorithm R.
+ * to compute quartiles, using so-called Algorithm L. Once the reservoir is full, the number of
+ * samples to skip until the next accepted sample is drawn at once, so rejected samples only
+ * decrement a counter.
  *
  *
  * The maximum size of the reservoir can be increased to get more accurate quartile estimations.
  * As long as the number of samples is lower than the maximum size of the reservoir, the quartiles
  * are computed exactly.
+ *
+ * @param deferSort whether to defer sorting the samples until they are read. Accepted samples
+ * then replace a reservoir entry directly instead of shifting the array to keep it sorted. This
+ * is more efficient when many samples are added between reads.
  */
 class UniformSamplingReservoir @JvmOverloads constructor(
     samples: DoubleArray = doubleArrayOf(),
     count: Long = 0,
     maxSize: Int = MAX_SIZE_DEFAULT,
+    val deferSort: Boolean = false,
 ) : SpecificAvroConvertible {
     private var samples: DoubleArray = DoubleArray(maxSize)
 
@@ -33,6 +46,26 @@ class UniformSamplingReservoir @JvmOverloads constructor(
     @Transient
     private var currentLength = 0
 
+    /** Whether the first [currentLength] samples are sorted. */
+    @Transient
+    private var isSorted = true
+
+    /** Algorithm L threshold, the largest random key of the samples in the reservoir. */
+    @Transient
+    private var threshold = 0.0
+
+    /** Number of samples to reject before accepting the next one in a full reservoir. */
+    @Transient
+    private var skip = 0L
+
+    /**
+     * Whether the reservoir samples new values instead of storing all of them. This is the case
+     * once it reaches [maxSize], or when it was merged from or initialized with fewer samples
+     * than it represents. In that case, it keeps sampling at its current length.
+     */
+    private val isFull: Boolean
+        get() = currentLength == maxSize || count > currentLength
+
     /**
      * Create a reservoir that samples from given values.
      * @param samples list of values to sample from.
@@ -53,10 +86,14 @@ class UniformSamplingReservoir @JvmOverloads constructor(
         count = initCount
         if (initSamples.isEmpty()) {
             currentLength = 0
-            return
+        } else {
+            subsample(initSamples)
+            samples.sort(0, currentLength)
+        }
+        isSorted = true
+        if (isFull) {
+            startSkipping()
         }
-        subsample(initSamples)
-        samples.sort(0, currentLength)
     }
 
     private fun subsample(initSamples: DoubleArray) {
@@ -96,16 +133,150 @@ class UniformSamplingReservoir @JvmOverloads constructor(
 
     /** Add a sample to the reservoir.  */
     fun add(value: Double) {
-        if (currentLength == maxSize) {
-            val removeIndex = Random.nextLong(count)
-            if (removeIndex < maxSize) {
-                removeAndAdd(removeIndex.toInt(), value)
-            }
-        } else {
-            removeAndAdd(currentLength, value)
+        if (!isFull) {
+            replace(currentLength, value)
             currentLength++
+            count++
+            if (isFull) {
+                startSkipping()
+            }
+            return
         }
         count++
+        if (skip > 0) {
+            skip--
+            return
+        }
+        replace(Random.nextInt(currentLength), value)
+        threshold *= exp(ln(randomUnit()) / currentLength)
+        nextSkip()
+    }
+
+    /**
+     * Initialize the Algorithm L state once the reservoir is full. The reservoir keeps sampling
+     * at its current length. If more samples than that were already seen, for example when
+     * restoring serialized state, the threshold is set to its expected value given [count].
+     */
+    private fun startSkipping() {
+        if (currentLength == 0) {
+            skip = Long.MAX_VALUE
+            return
+        }
+        threshold = if (count <= currentLength) {
+            exp(ln(randomUnit()) / currentLength)
+        } else {
+            currentLength / (count + 1.0)
+        }
+        nextSkip()
+    }
+
+    private fun nextSkip() {
+        skip = floor(ln(randomUnit()) / ln1p(-threshold)).toLong()
+    }
+
+    /** Put a value in given position, either keeping the samples sorted or deferring that. */
+    private fun replace(index: Int, value: Double) {
+        if (deferSort) {
+            samples[index] = value
+            isSorted = false
+        } else {
+            removeAndAdd(index, value)
+        }
+    }
+
+    private fun ensureSorted() {
+        if (!isSorted) {
+            samples.sort(0, currentLength)
+            isSorted = true
+        }
+    }
+
+    /**
+     * Add a range of samples to the reservoir. While the reservoir is not yet full, samples are
+     * copied in directly and sorted once, instead of being inserted one by one. Afterwards,
+     * skipped samples are passed over without reading them.
+     * @throws IndexOutOfBoundsException if the range is not contained in [values].
+     */
+    @JvmOverloads
+    fun addAll(values: DoubleArray, offset: Int = 0, length: Int = values.size - offset) {
+        Objects.checkFromIndexSize(offset, length, values.size)
+        val end = offset + length
+        var index = offset
+        if (!isFull && index < end) {
+            val fillLength = min(maxSize - currentLength, end - index)
+            values.copyInto(samples, currentLength, index, index + fillLength)
+            currentLength += fillLength
+            count += fillLength
+            index += fillLength
+            if (deferSort) {
+                isSorted = false
+            } else {
+                samples.sort(0, currentLength)
+            }
+            if (isFull) {
+                startSkipping()
+            }
+        }
+        while (index < end) {
+            val skipped = min(skip, (end - index).toLong()).toInt()
+            index += skipped
+            count += skipped
+            skip -= skipped
+            if (index < end) {
+                add(values[index])
+                index++
+            }
+        }
+    }
+
+    /**
+     * Merge another reservoir into this one, as if all samples represented by [other] had been
+     * added to this reservoir. If both reservoirs still hold every sample they have seen and
+     * together hold no more than [maxSize] samples, all of them are kept. Otherwise, the merged
+     * reservoir is drawn without replacement from the combined stream: each slot is taken from
+     * one of the two reservoirs with probability proportional to the number of stream samples
+     * of that reservoir that were not drawn yet. The result remains a uniform sample of the
+     * combined stream. Because a reservoir cannot provide more samples than it holds, the merged
+     * reservoir may hold fewer than [maxSize] samples, and it then keeps sampling at that size.
+     * The other reservoir is not modified.
+     */
+    fun merge(other: UniformSamplingReservoir): UniformSamplingReservoir {
+        if (other.count == 0L) return this
+        val otherLength = other.currentLength
+        if (count == currentLength.toLong() &&
+            other.count == otherLength.toLong() &&
+            currentLength + otherLength <= maxSize
+        ) {
+            other.samples.copyInto(samples, currentLength, 0, otherLength)
+            currentLength += otherLength
+        } else {
+            var length = min(maxSize.toLong(), count + other.count).toInt()
+            if (count > currentLength) length = min(length, currentLength)
+            if (other.count > otherLength) length = min(length, otherLength)
+            val source = samples.copyOf(currentLength)
+            val otherSource = other.samples.copyOf(otherLength)
+            var remaining = currentLength
+            var otherRemaining = otherLength
+            var remainingCount = count
+            var otherRemainingCount = other.count
+            for (i in 0 until length) {
+                samples[i] = if (Random.nextLong(remainingCount + otherRemainingCount) < remainingCount) {
+                    remainingCount--
+                    source.removeRandom(remaining--)
+                } else {
+                    otherRemainingCount--
+                    otherSource.removeRandom(otherRemaining--)
+                }
+            }
+            currentLength = length
+        }
+        samples.sort(0, currentLength)
+        isSorted = true
+        count += other.count
+        if (isFull) {
+            startSkipping()
+        }
+        return this
     }
 
     private fun removeAndAdd(removeIndex: Int, value: Double) {
@@ -149,30 +320,35 @@ class UniformSamplingReservoir @JvmOverloads constructor(
          * the maximum size of the reservoir, this will be an estimate.
          * @return list with size three, of the 25, 50 and 75 percentiles.
          */
-        get() = (1..3)
-            .map { i ->
-                when (currentLength) {
-                    0 -> Double.NaN
-                    1 -> samples[0]
-                    else -> {
-                        val pos = i * (currentLength + 1) * 0.25 // 25 percentile steps
-                        when (val intPos = pos.toInt()) {
-                            0 -> samples[0]
-                            currentLength -> samples[currentLength - 1]
-                            else -> {
-                                val diff = pos - intPos
-                                val base = samples[intPos - 1]
-                                base + diff * (samples[intPos] - base)
+        get() {
+            ensureSorted()
+            return (1..3)
+                .map { i ->
+                    when (currentLength) {
+                        0 -> Double.NaN
+                        1 -> samples[0]
+                        else -> {
+                            val pos = i * (currentLength + 1) * 0.25 // 25 percentile steps
+                            when (val intPos = pos.toInt()) {
+                                0 -> samples[0]
+                                currentLength -> samples[currentLength - 1]
+                                else -> {
+                                    val diff = pos - intPos
+                                    val base = samples[intPos - 1]
+                                    base + diff * (samples[intPos] - base)
+                                }
                             }
                         }
                     }
                 }
-            }
+        }
 
     /** Get the currently stored samples.  */
     @JsonGetter
-    fun getSamples(): List<Double> = (0 until currentLength)
-        .map { samples[it] }
+    fun getSamples(): List<Double> {
+        ensureSorted()
+        return (0 until currentLength).map { samples[it] }
+    }
 
     override fun equals(other: Any?): Boolean {
         if (this === other) {
@@ -182,30 +358,40 @@ class UniformSamplingReservoir @JvmOverloads constructor(
             return false
         }
         other as UniformSamplingReservoir
+        ensureSorted()
+        other.ensureSorted()
+        // samples beyond the current length are unused, for example after a merge
         return count == other.count &&
             maxSize == other.maxSize &&
-            samples.contentEquals(other.samples)
+            Arrays.equals(samples, 0, currentLength, other.samples, 0, other.currentLength)
     }
 
     override fun hashCode(): Int {
-        var result = samples.contentHashCode()
+        ensureSorted()
+        var result = 1
+        for (i in 0 until currentLength) {
+            result = 31 * result + samples[i].hashCode()
+        }
         result = 31 * result + maxSize
         result = 31 * result + count.hashCode()
         return result
     }
 
-    override fun toString(): String = "UniformSamplingReservoir{" +
-        "samples=${samples.contentToString()}, " +
-        "maxSize=$maxSize, " +
-        "count=$count}"
+    override fun toString(): String {
+        ensureSorted()
+        return "UniformSamplingReservoir{" +
+            "samples=${samples.copyOf(currentLength).contentToString()}, " +
+            "maxSize=$maxSize, " +
+            "count=$count}"
+    }
 
     override fun toAvro(): SamplingReservoirState {
-        val length = min(maxSize.toLong(), count).toInt()
+        ensureSorted()
 
         return SamplingReservoirState().apply {
             this.count = this@UniformSamplingReservoir.count
             this.maxSize = this@UniformSamplingReservoir.maxSize
-            this.samples = (0 until length).map { this@UniformSamplingReservoir.samples[it] }
+            this.samples = (0 until currentLength).map { this@UniformSamplingReservoir.samples[it] }
         }
     }
 
@@ -220,7 +406,53 @@ class UniformSamplingReservoir @JvmOverloads constructor(
         )
     }
 
+    /** Write the reservoir in the compact binary format of [CollectorStateFormat]. */
+    internal fun writeCompact(writer: CompactStateWriter, compress: Boolean) {
+        ensureSorted()
+        writer.writeVarInt(maxSize)
+        writer.writeVarLong(count)
+        writer.writeVarInt(currentLength)
+        writer.writeDoubles(samples, 0, currentLength, compress)
+    }
+
+    /** Read the reservoir from the compact binary format of [CollectorStateFormat]. */
+    internal fun readCompact(reader: CompactStateReader, compress: Boolean) {
+        val stateMaxSize = reader.readVarInt()
+        val stateCount = reader.readVarLong()
+        val length = reader.readVarInt()
+        require(length <= stateMaxSize && length <= stateCount) {
+            "Reservoir length $length exceeds its maximum size or count"
+        }
+        maxSize = stateMaxSize
+        if (samples.size == maxSize) {
+            samples.fill(0.0, length)
+        } else {
+            samples = DoubleArray(maxSize)
+        }
+        reader.readDoubles(samples, 0, length, compress)
+        count = stateCount
+        currentLength = length
+        isSorted = true
+        if (isFull) {
+            startSkipping()
+        }
+    }
+
     companion object {
         private const val MAX_SIZE_DEFAULT = 999
+
+        /** Random number in (0, 1]. */
+        private fun randomUnit(): Double = 1.0 - Random.nextDouble()
+
+        /**
+         * Remove a random element from the first [length] elements of this array, by moving the
+         * last of those elements in its place.
+         */
+        private fun DoubleArray.removeRandom(length: Int): Double {
+            val index = Random.nextInt(length)
+            val value = this[index]
+            this[index] = this[length - 1]
+            return value
+        }
     }
 }
@@ -15,33 +15,67 @@
  */
 package org.radarbase.util
 
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReferenceArray
+import java.util.concurrent.atomic.DoubleAdder
 import kotlin.math.roundToLong
-import kotlin.time.ComparableTimeMark
 import kotlin.time.Duration
+import kotlin.time.Duration.Companion.milliseconds
 import kotlin.time.TimeSource
 
 /**
  * Get the average of a set of values collected in a sliding time window of fixed duration. At least
- * one value is needed to get an average. This class is not thread-safe and must be synchronized
- * externally if accessed from multiple threads.
+ * one value is needed to get an average.
+ *
+ * The window is divided into a fixed number of time buckets, so memory use does not depend on the
+ * number of values added. The sliding window therefore moves in steps of one bucket. This class
+ * is thread-safe: values can be added concurrently from multiple threads without locking.
  * @param window duration of the time window.
+ * @param buckets number of buckets that the window is divided in.
+ * @param timeSource source of the time that values are added at.
  */
-class RollingTimeAverage(
-    private val window: Duration,
+class RollingTimeAverage @JvmOverloads constructor(
+    window: Duration,
+    buckets: Int = BUCKETS_DEFAULT,
+    timeSource: TimeSource = TimeSource.Monotonic,
 ) {
-    private var firstTimeCount: TimeCount? = null
-    private val deque = ArrayDeque<TimeCount>()
+    private val origin = timeSource.markNow()
+    private val bucketNanos: Long
+    private val numBuckets: Int = buckets
+    private val buckets = AtomicReferenceArray<Bucket>(buckets)
+    private val firstTime = AtomicLong(NO_TIME)
+
+    init {
+        require(window.isPositive()) { "Window must be positive" }
+        require(buckets > 0) { "Number of buckets must be positive" }
+        bucketNanos = (window.inWholeNanoseconds / buckets).coerceAtLeast(1)
+    }
 
     /** Whether values have already been added.  */
     val hasAverage: Boolean
-        get() = firstTimeCount != null
+        get() = firstTime.get() != NO_TIME
 
     /** Add a new value.  */
     fun add(x: Double) {
-        if (firstTimeCount == null) {
-            firstTimeCount = TimeCount(x)
-        } else {
-            deque.addLast(TimeCount(x))
+        val now = elapsedNanos()
+        if (firstTime.get() == NO_TIME) {
+            firstTime.compareAndSet(NO_TIME, now)
+        }
+        bucket(now / bucketNanos).sum.add(x)
+    }
+
+    /**
+     * Get the bucket for given epoch, replacing an older bucket in its slot if needed. If this
+     * thread was delayed, a newer bucket may already be in place. That bucket is then returned
+     * as the closest approximation.
+     */
+    private fun bucket(epoch: Long): Bucket {
+        val slot = (epoch % numBuckets).toInt()
+        while (true) {
+            val bucket = buckets.get(slot)
+            if (bucket != null && bucket.epoch >= epoch) return bucket
+            val newBucket = Bucket(epoch)
+            if (buckets.compareAndSet(slot, bucket, newBucket)) return newBucket
         }
     }
 
@@ -53,35 +87,28 @@ class RollingTimeAverage(
     /**
      * Get the average value per second over a sliding time window of fixed size.
      *
-     * It takes one value before the window started as a baseline, and adds all values in the
-     * window. It then divides by the total time window from the first value (outside/before the
-     * window) to the last value (at the end of the window).
+     * It sums all values in the buckets of the window, and divides by the duration of the window.
+     * If the first value was added after the window started, it divides by the time since the
+     * first value instead.
      * @return average value per second or 0 if no value is present
      */
     val average: Double
         get() {
-            var firstTimeCount = firstTimeCount ?: return 0.0
-            val now = TimeSource.Monotonic.markNow()
-            val windowStart = now - window
-            var firstInDeque = deque.firstOrNull()
-            while (firstInDeque != null && firstInDeque.time < windowStart) {
-                firstTimeCount = deque.removeFirst()
-                firstInDeque = deque.firstOrNull()
-            }
-            if (firstTimeCount !== this.firstTimeCount) {
-                this.firstTimeCount = firstTimeCount
-            }
-            val total = firstTimeCount.value + deque.sumOf { it.value }
-            val firstTime = firstTimeCount.time
-            return if (firstInDeque == null || firstTime >= windowStart) {
-                1000.0 * total / (now - firstTime).inWholeMilliseconds
-            } else {
-                val duration = deque.last().time - windowStart
-                val removedRate = (windowStart - firstTime).inWholeMilliseconds /
-                    (firstInDeque.time - firstTime).inWholeMilliseconds.toDouble()
-                val removedValue = firstTimeCount.value + firstInDeque.value * removedRate
-                1000.0 * (total - removedValue) / duration.inWholeMilliseconds
+            val first = firstTime.get()
+            if (first == NO_TIME) return 0.0
+            val now = elapsedNanos()
+            val epoch = now / bucketNanos
+            val oldestEpoch = epoch - numBuckets + 1
+            var total = 0.0
+            for (slot in 0 until numBuckets) {
+                val bucket = buckets.get(slot) ?: continue
+                if (bucket.epoch in oldestEpoch..epoch) {
+                    total += bucket.sum.sum()
+                }
             }
+            val windowStart = maxOf(oldestEpoch * bucketNanos, first)
+            val duration = (now - windowStart).coerceAtLeast(MIN_DURATION_NANOS)
+            return total * NANOS_PER_SECOND / duration
         }
 
     /**
@@ -90,9 +117,18 @@ class RollingTimeAverage(
     val count: Long
         get() = average.roundToLong()
 
-    private class TimeCount(
-        val value: Double,
+    private fun elapsedNanos(): Long = origin.elapsedNow().inWholeNanoseconds
+
+    private class Bucket(
+        val epoch: Long,
     ) {
-        val time: ComparableTimeMark = TimeSource.Monotonic.markNow()
+        val sum = DoubleAdder()
+    }
+
+    companion object {
+        private const val BUCKETS_DEFAULT = 20
+        private const val NO_TIME = Long.MIN_VALUE
+        private const val NANOS_PER_SECOND = 1_000_000_000.0
+        private val MIN_DURATION_NANOS = 1.milliseconds.inWholeNanoseconds
     }
 }
@@ -0,0 +1,35 @@
+package org.radarbase.stream
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Test
+import kotlin.random.Random
+
+class LongObjectMapTest {
+    @Test
+    fun matchesHashMap() {
+        val random = Random(1)
+        val map = LongObjectMap<String>()
+        val expected = HashMap<Long, String>()
+        repeat(10_000) {
+            val key = random.nextLong(200) * 1000L
+            when (random.nextInt(3)) {
+                0, 1 -> {
+                    map.put(key, "v$it")
+                    expected[key] = "v$it"
+                }
+                else -> assertEquals(expected.remove(key), map.remove(key))
+            }
+            assertEquals(expected.size, map.size)
+        }
+        expected.forEach { (key, value) -> assertEquals(value, map[key]) }
+
+        val removed = map.removeIf { key, _ -> key % 3000L == 0L }
+        assertEquals(expected.keys.count { it % 3000L == 0L }, removed)
+        expected.keys.removeIf { it % 3000L == 0L }
+        val remaining = HashMap<Long, String>()
+        map.forEach { key, value -> remaining[key] = value }
+        assertEquals(expected, remaining)
+        assertNull(map[3000L])
+    }
+}
@@ -0,0 +1,140 @@
+package org.radarbase.stream
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.radarbase.data.AvroRecordData
+import org.radarbase.stream.collector.AggregateListCollector
+import org.radarbase.topic.AvroTopic
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneAcceleration
+import kotlin.time.Duration.Companion.seconds
+
+class WindowedAggregatorTest {
+    private val key = ObservationKey("p", "u", "s")
+    private val closed = mutableListOf<WindowedAggregator.AggregatedWindow<ObservationKey>>()
+
+    private fun createCollector() = AggregateListCollector(
+        arrayOf("x", "y", "z"),
+        PhoneAcceleration.getClassSchema(),
+        false,
+    )
+
+    private fun record(time: Double) = PhoneAcceleration(time, time, time.toFloat(), 0f, 1f)
+
+    @Test
+    fun tumbling() {
+        val aggregator = WindowedAggregator<ObservationKey>(
+            windowSize = 10.seconds,
+            createCollector = ::createCollector,
+            onWindowClosed = { closed += it },
+        )
+        val otherKey = ObservationKey("p", "u2", "s")
+        (0 until 30).forEach {
+            aggregator.add(key, record(it.toDouble()))
+            aggregator.add(otherKey, record(it + 0.5))
+        }
+        assertEquals(4, closed.size)
+        assertEquals(listOf(10_000L, 10_000L, 20_000L, 20_000L), closed.map { it.end })
+        closed.forEach { window ->
+            assertEquals(10, window.collector.getCollectors()[0].count)
+        }
+        val first = closed.first { it.key == key }
+        assertEquals(0L, first.start)
+        assertEquals(9.0, first.collector.getCollectors()[0].max)
+        assertEquals(2, aggregator.openWindows)
+
+        aggregator.flush()
+        assertEquals(6, closed.size)
+        assertEquals(0, aggregator.openWindows)
+    }
+
+    @Test
+    fun hopping() {
+        val aggregator = WindowedAggregator<ObservationKey>(
+            windowSize = 10.seconds,
+            advance = 5.seconds,
+            createCollector = ::createCollector,
+            onWindowClosed = { closed += it },
+        )
+        aggregator.add(key, record(12.0))
+        assertEquals(2, aggregator.openWindows)
+        aggregator.advanceWatermark(15_000L)
+        assertEquals(listOf(5_000L), closed.map { it.start })
+        aggregator.flush()
+        assertEquals(listOf(5_000L, 10_000L), closed.map { it.start })
+        closed.forEach { assertEquals(1, it.collector.getCollectors()[0].count) }
+    }
+
+    @Test
+    fun lateRecords() {
+        val aggregator = WindowedAggregator<ObservationKey>(
+            windowSize = 10.seconds,
+            gracePeriod = 5.seconds,
+            createCollector = ::createCollector,
+            onWindowClosed = { closed += it },
+        )
+        aggregator.add(key, record(12.0))
+        aggregator.add(key, record(3.0))
+        assertEquals(0, closed.size)
+        assertEquals(0, aggregator.droppedRecords)
+
+        aggregator.add(key, record(16.0))
+        assertEquals(listOf(0L), closed.map { it.start })
+        aggregator.add(key, record(4.0))
+        assertEquals(1, aggregator.droppedRecords)
+        assertEquals(16_000L, aggregator.watermark)
+    }
+
+    @Test
+    fun recordData() {
+        val topic = AvroTopic(
+            "test",
+            ObservationKey.getClassSchema(),
+            PhoneAcceleration.getClassSchema(),
+            ObservationKey::class.java,
+            PhoneAcceleration::class.java,
+        )
+        val aggregator = WindowedAggregator<ObservationKey>(
+            windowSize = 1.seconds,
+            createCollector = ::createCollector,
+            onWindowClosed = { closed += it },
+        )
+        aggregator.addAll(AvroRecordData(topic, key, (0 until 50).map { record(it * 0.1) }))
+        assertEquals(4, closed.size)
+        aggregator.flush()
+        assertEquals(5, closed.size)
+        assertEquals(50, closed.sumOf { it.collector.getCollectors()[2].count })
+    }
+
+    @Test
+    fun batchMatchesSingleRecords() {
+        val batchClosed = mutableListOf<WindowedAggregator.AggregatedWindow<ObservationKey>>()
+        val single = WindowedAggregator<ObservationKey>(
+            windowSize = 10.seconds,
+            advance = 5.seconds,
+            gracePeriod = 2.seconds,
+            createCollector = ::createCollector,
+            onWindowClosed = { closed += it },
+        )
+        val batch = WindowedAggregator<ObservationKey>(
+            windowSize = 10.seconds,
+            advance = 5.seconds,
+            gracePeriod = 2.seconds,
+            createCollector = ::createCollector,
+            onWindowClosed = { batchClosed += it },
+        )
+        val records = listOf(1.0, 3.5, 8.0, 2.0, 13.0, 4.0, 9.0, 21.5, 11.0, 17.0, 30.0, 6.0)
+            .map { record(it) }
+        records.forEach { single.add(key, it) }
+        batch.addAll(key, records)
+        assertEquals(single.droppedRecords, batch.droppedRecords)
+        assertEquals(single.openWindows, batch.openWindows)
+        single.flush()
+        batch.flush()
+        assertEquals(closed.map { it.start }, batchClosed.map { it.start })
+        assertEquals(
+            closed.map { it.collector.getCollectors() },
+            batchClosed.map { it.collector.getCollectors() },
+        )
+    }
+}
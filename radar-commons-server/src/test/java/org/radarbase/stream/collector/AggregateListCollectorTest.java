@@ -17,8 +17,16 @@
 package org.radarbase.stream.collector;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.avro.generic.IndexedRecord;
 import org.junit.jupiter.api.Test;
+import org.radarbase.data.ColumnarRecordData;
+import org.radarbase.topic.AvroTopic;
+import org.radarcns.kafka.ObservationKey;
 import org.radarcns.passive.empatica.EmpaticaE4Acceleration;
 
 /**
@@ -49,4 +57,100 @@ public class AggregateListCollectorTest {
         assertEquals(1.0, arrayCollector.getCollectors().get(1).getMin(), 0.0d);
         assertEquals(2.0, arrayCollector.getCollectors().get(2).getMin(), 0.0d);
     }
+
+    @Test
+    public void addAll() {
+        AggregateListCollector arrayCollector = new AggregateListCollector(
+                new String[]{"a", "b"}, false);
+        arrayCollector.addAll(new double[] {-1d, 0.15d, 1.0d, 2.0d, 3.0d, -4.0d, 5.0d});
+        assertEquals(-1.0, arrayCollector.getCollectors().get(0).getMin(), 0.0d);
+        assertEquals(3.0, arrayCollector.getCollectors().get(0).getMax(), 0.0d);
+        assertEquals(-4.0, arrayCollector.getCollectors().get(1).getMin(), 0.0d);
+        assertEquals(2.0, arrayCollector.getCollectors().get(1).getMax(), 0.0d);
+        assertEquals(3, arrayCollector.getCollectors().get(1).getCount());
+    }
+
+    @Test
+    public void addAllRecords() {
+        List<IndexedRecord> records = new ArrayList<>();
+        AggregateListCollector single = new AggregateListCollector(new String[] {"x", "y", "z"},
+                EmpaticaE4Acceleration.getClassSchema(), false);
+        for (int i = 0; i < 500; i++) {
+            EmpaticaE4Acceleration record = new EmpaticaE4Acceleration(
+                    0d, 0d, i * 0.1f, -i * 0.3f, 1.0f);
+            records.add(record);
+            single.add(record);
+        }
+        AtomicInteger iterations = new AtomicInteger();
+        Iterable<IndexedRecord> iterable = () -> {
+            iterations.incrementAndGet();
+            return records.iterator();
+        };
+        AggregateListCollector arrayCollector = new AggregateListCollector(new String[] {"x", "y", "z"},
+                EmpaticaE4Acceleration.getClassSchema(), false);
+        arrayCollector.addAll(iterable);
+        assertEquals(single.getCollectors(), arrayCollector.getCollectors());
+        assertEquals(1, iterations.get());
+    }
+
+    @Test
+    public void addAllColumnar() {
+        AvroTopic<ObservationKey, EmpaticaE4Acceleration> topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), EmpaticaE4Acceleration.getClassSchema(),
+                ObservationKey.class, EmpaticaE4Acceleration.class);
+        ColumnarRecordData<ObservationKey, EmpaticaE4Acceleration> data = new ColumnarRecordData<>(
+                topic, new ObservationKey("p", "u", "s"), 16);
+        AggregateListCollector single = new AggregateListCollector(new String[] {"x", "y", "z"},
+                EmpaticaE4Acceleration.getClassSchema(), false);
+        for (int i = 0; i < 500; i++) {
+            EmpaticaE4Acceleration record = new EmpaticaE4Acceleration(
+                    0d, 0d, i * 0.1f, -i * 0.3f, 1.0f);
+            data.add(record);
+            single.add(record);
+        }
+        AggregateListCollector arrayCollector = new AggregateListCollector(new String[] {"x", "y", "z"},
+                EmpaticaE4Acceleration.getClassSchema(), false);
+        arrayCollector.addAll(data);
+        assertEquals(single.getCollectors(), arrayCollector.getCollectors());
+    }
+
+    @Test
+    public void merge() {
+        AggregateListCollector arrayCollector = new AggregateListCollector(
+                new String[]{"a", "b"}, false);
+        AggregateListCollector other = new AggregateListCollector(
+                new String[]{"a", "b"}, false);
+        arrayCollector.add(1.0d, 2.0d);
+        other.add(-1.0d, 5.0d);
+        arrayCollector.merge(other);
+        assertEquals(-1.0, arrayCollector.getCollectors().get(0).getMin(), 0.0d);
+        assertEquals(5.0, arrayCollector.getCollectors().get(1).getMax(), 0.0d);
+        assertEquals(2, arrayCollector.getCollectors().get(1).getCount());
+
+        assertThrows(IllegalArgumentException.class, () -> arrayCollector.merge(
+                new AggregateListCollector(new String[]{"a"}, false)));
+    }
+
+    @Test
+    public void fromAvroKeepsSummation() {
+        AggregateListCollector arrayCollector = new AggregateListCollector(
+                new String[]{"a", "b"}, null, true,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        arrayCollector.add(1.0d, 2.0d);
+        arrayCollector.add(1e100d, -1.0d);
+        arrayCollector.add(-1e100d, 0.5d);
+
+        AggregateListCollector copy = new AggregateListCollector(
+                NumericAggregateCollector.Summation.COMPENSATED);
+        copy.fromAvro(arrayCollector.toAvro());
+        assertEquals(arrayCollector.getCollectors(), copy.getCollectors());
+        assertEquals(NumericAggregateCollector.Summation.COMPENSATED,
+                copy.getCollectors().get(0).getSummation());
+
+        AggregateListCollector restored = new AggregateListCollector(
+                new String[]{"a", "b"}, null, true,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        restored.fromAvro(arrayCollector.toAvro());
+        assertEquals(arrayCollector.getCollectors(), restored.getCollectors());
+    }
 }
@@ -0,0 +1,74 @@
+package org.radarbase.stream.collector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.jupiter.api.Test;
+import org.radarcns.passive.empatica.EmpaticaE4Acceleration;
+
+public class CollectorStateFormatTest {
+    @Test
+    public void numericAggregate() {
+        NumericAggregateCollector collector = new NumericAggregateCollector("test", null, true,
+                NumericAggregateCollector.Summation.EXACT, true);
+        for (int i = 0; i < 2000; i++) {
+            collector.add(Math.sin(i) * 10.25d);
+        }
+        NumericAggregateCollector copy = CollectorStateFormat.deserializeNumericAggregate(
+                CollectorStateFormat.serialize(collector));
+        assertEquals(collector, copy);
+        assertEquals(collector.toAvro(), copy.toAvro());
+
+        byte[] uncompressed = CollectorStateFormat.serialize(collector, false);
+        assertEquals(collector, CollectorStateFormat.deserializeNumericAggregate(uncompressed));
+        assertTrue(CollectorStateFormat.serialize(collector).length < uncompressed.length);
+    }
+
+    @Test
+    public void numericAggregateCompensated() {
+        NumericAggregateCollector collector = new NumericAggregateCollector("x",
+                EmpaticaE4Acceleration.getClassSchema(), false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        collector.add(1e16d).add(1d);
+        NumericAggregateCollector copy = CollectorStateFormat.deserializeNumericAggregate(
+                CollectorStateFormat.serialize(collector));
+        assertEquals(collector, copy);
+        assertEquals(NumericAggregateCollector.Summation.COMPENSATED, copy.getSummation());
+        copy.add(-1e16d);
+        assertEquals(1d, copy.getSum(), 0d);
+    }
+
+    @Test
+    public void emptyCollectors() {
+        NumericAggregateCollector collector = new NumericAggregateCollector();
+        assertEquals(collector, CollectorStateFormat.deserializeNumericAggregate(
+                CollectorStateFormat.serialize(collector)));
+        AggregateListCollector listCollector = new AggregateListCollector();
+        assertEquals(0, CollectorStateFormat.deserializeAggregateList(
+                CollectorStateFormat.serialize(listCollector)).getCollectors().size());
+    }
+
+    @Test
+    public void serde() {
+        AggregateListCollector collector = new AggregateListCollector(new String[] {"x", "y", "z"},
+                EmpaticaE4Acceleration.getClassSchema(), true);
+        for (int i = 0; i < 100; i++) {
+            collector.add(new EmpaticaE4Acceleration(0d, 0d, i * 0.5f, -i, 1f));
+        }
+        AggregateListCollectorSerde serde = new AggregateListCollectorSerde();
+        byte[] data = serde.serializer().serialize("topic", collector);
+        AggregateListCollector copy = serde.deserializer().deserialize("topic", data);
+        assertEquals(collector.getCollectors(), copy.getCollectors());
+        assertEquals(collector.toAvro(), copy.toAvro());
+
+        assertNull(serde.serializer().serialize("topic", null));
+        assertNull(serde.deserializer().deserialize("topic", null));
+        assertThrows(SerializationException.class,
+                () -> serde.deserializer().deserialize("topic", new byte[] {1, 1, 0}));
+        assertThrows(SerializationException.class,
+                () -> serde.deserializer().deserialize("topic", new byte[] {1, 2, 5, 3}));
+    }
+}
@@ -17,14 +17,24 @@
 package org.radarbase.stream.collector;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericRecord;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.radarbase.data.ColumnarRecordData;
+import org.radarbase.topic.AvroTopic;
 import org.radarcns.kafka.AggregateKey;
+import org.radarcns.kafka.ObservationKey;
 import org.radarcns.monitor.application.ApplicationRecordCounts;
 import org.radarcns.passive.empatica.EmpaticaE4BloodVolumePulse;
 import org.radarcns.passive.phone.PhoneBatteryLevel;
@@ -212,4 +222,204 @@ public class NumericAggregateCollectorTest {
         assertEquals(2, valueCollector.getCount());
         assertEquals(2, valueCollector.getReservoir().getSamples().size());
     }
+
+    @Test
+    public void testCompensatedSum() {
+        valueCollector = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        valueCollector.add(1.0d);
+        valueCollector.add(1e100d);
+        valueCollector.add(1.0d);
+        valueCollector.add(-1e100d);
+        assertEquals(2.0d, valueCollector.getSum(), 0.0d);
+        assertEquals(0.5d, valueCollector.getMean(), 0.0d);
+
+        valueCollector = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        for (int i = 0; i < 1_000_000; i++) {
+            valueCollector.add(0.1d);
+        }
+        assertEquals(100_000d, valueCollector.getSum(), 0.0d);
+    }
+
+    @Test
+    public void testCompensatedSerialization() {
+        valueCollector = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        NumericAggregateState state = new NumericAggregateState();
+        state.setName("test");
+        state.setCount(2L);
+        state.setMin(-1d);
+        state.setMax(15d);
+        state.setSum(new BigDecimalState(ByteBuffer.wrap(BigInteger.valueOf(14).toByteArray()), 0));
+        valueCollector.fromAvro(state);
+        assertEquals(14d, valueCollector.getSum(), 0.0d);
+        assertEquals(state, valueCollector.toAvro());
+
+        valueCollector.add(1.0d);
+        valueCollector.add(1e100d);
+        valueCollector.add(-1e100d);
+        NumericAggregateCollector copy = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        copy.fromAvro(valueCollector.toAvro());
+        assertEquals(15d, copy.getSum(), 0.0d);
+        assertEquals(valueCollector, copy);
+    }
+
+    @Test
+    public void testNonFiniteSerialization() {
+        valueCollector = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        valueCollector.add(1.0d);
+        valueCollector.add(Double.POSITIVE_INFINITY);
+        assertEquals(Double.POSITIVE_INFINITY, valueCollector.getSum(), 0.0d);
+
+        NumericAggregateState state = (NumericAggregateState) valueCollector.toAvro();
+        assertEquals(Double.POSITIVE_INFINITY, state.getNonFiniteSum().doubleValue(), 0.0d);
+        NumericAggregateCollector copy = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        copy.fromAvro(state);
+        assertEquals(valueCollector, copy);
+
+        valueCollector.add(Double.NaN);
+        copy.fromAvro(valueCollector.toAvro());
+        assertTrue(Double.isNaN(copy.getSum()));
+        assertEquals(valueCollector, copy);
+        assertEquals(valueCollector.hashCode(), copy.hashCode());
+
+        NumericAggregateCollector exact = new NumericAggregateCollector("test", false);
+        assertThrows(IllegalArgumentException.class, () -> exact.fromAvro(state));
+    }
+
+    @Test
+    public void testEqualsSum() {
+        valueCollector = new NumericAggregateCollector("test", false);
+        NumericAggregateCollector other = new NumericAggregateCollector("test", false);
+        valueCollector.add(0d).add(1d).add(1e17d);
+        other.add(0d).add(2d).add(1e17d);
+        // sums only differ beyond double precision
+        assertEquals(valueCollector.getSum(), other.getSum(), 0.0d);
+        assertNotEquals(valueCollector, other);
+
+        NumericAggregateCollector compensated = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        compensated.add(0d).add(1d).add(1e17d);
+        assertNotEquals(valueCollector, compensated);
+
+        NumericAggregateCollector copy = new NumericAggregateCollector("test", false);
+        copy.fromAvro(valueCollector.toAvro());
+        assertEquals(valueCollector, copy);
+        assertEquals(valueCollector.hashCode(), copy.hashCode());
+    }
+
+    @Test
+    public void testAddAll() {
+        NumericAggregateCollector single = new NumericAggregateCollector("test", true);
+        double[] values = new double[102];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (i * 37 % 101) * 0.1d - 3d;
+        }
+        for (int i = 1; i < values.length - 1; i++) {
+            single.add(values[i]);
+        }
+        valueCollector.addAll(values, 1, values.length - 2);
+        assertEquals(single, valueCollector);
+        assertEquals(single.getReservoir().getSamples(), valueCollector.getReservoir().getSamples());
+        assertThrows(IndexOutOfBoundsException.class, () -> valueCollector.addAll(values, 1, values.length));
+    }
+
+    @Test
+    public void testAddAllRecords() {
+        valueCollector = new NumericAggregateCollector("bloodVolumePulse",
+                EmpaticaE4BloodVolumePulse.getClassSchema(), false);
+        NumericAggregateCollector single = new NumericAggregateCollector("bloodVolumePulse",
+                EmpaticaE4BloodVolumePulse.getClassSchema(), false);
+        List<EmpaticaE4BloodVolumePulse> records = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            EmpaticaE4BloodVolumePulse record = new EmpaticaE4BloodVolumePulse(0d, 0d, i * 0.01f);
+            records.add(record);
+            single.add(record);
+        }
+        valueCollector.addAll(records);
+        assertEquals(single, valueCollector);
+        assertEquals(300, valueCollector.getCount());
+    }
+
+    @Test
+    public void testAddAllColumnarWrongType() {
+        Schema numericSchema = SchemaBuilder.record("Numeric").fields()
+                .requiredDouble("time")
+                .requiredFloat("x")
+                .endRecord();
+        Schema booleanSchema = SchemaBuilder.record("Flag").fields()
+                .requiredDouble("time")
+                .requiredBoolean("x")
+                .endRecord();
+        AvroTopic<ObservationKey, GenericRecord> topic = new AvroTopic<>("test",
+                ObservationKey.getClassSchema(), booleanSchema,
+                ObservationKey.class, GenericRecord.class);
+        ColumnarRecordData<ObservationKey, GenericRecord> data = new ColumnarRecordData<>(
+                topic, new ObservationKey("p", "u", "s"), 16);
+        for (int i = 0; i < 10; i++) {
+            data.set(data.addRow(), 1, true);
+        }
+        valueCollector = new NumericAggregateCollector("x", numericSchema, false);
+        // the boolean column is not read as a numeric column
+        valueCollector.addAll(data);
+        assertEquals(0, valueCollector.getCount());
+    }
+
+    @Test
+    public void testMerge() {
+        NumericAggregateCollector other = new NumericAggregateCollector("test", true);
+        NumericAggregateCollector combined = new NumericAggregateCollector("test", true);
+        for (int i = 0; i < 20; i++) {
+            double value = i * 1.5d - 7d;
+            if (i % 3 == 0) {
+                other.add(value);
+            } else {
+                valueCollector.add(value);
+            }
+            combined.add(value);
+        }
+        valueCollector.merge(other);
+        assertEquals(combined, valueCollector);
+        assertEquals(7, other.getCount());
+
+        assertThrows(IllegalArgumentException.class,
+                () -> valueCollector.merge(new NumericAggregateCollector("test", false)));
+    }
+
+    @Test
+    public void testMergeCompensated() {
+        valueCollector = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.COMPENSATED);
+        NumericAggregateCollector other = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.EXACT);
+        valueCollector.add(1e16d).add(1d);
+        other.add(-1e16d).add(-2.5d);
+        valueCollector.merge(other);
+        assertEquals(-1.5d, valueCollector.getSum(), 0.0d);
+        assertEquals(-1e16d, valueCollector.getMin(), 0.0d);
+        assertEquals(4, valueCollector.getCount());
+    }
+
+    @Test
+    public void testDigest() {
+        valueCollector = new NumericAggregateCollector("test", null, false,
+                NumericAggregateCollector.Summation.EXACT, true);
+        for (int i = 1; i <= 1000; i++) {
+            valueCollector.add((double) i);
+        }
+        assertTrue(valueCollector.hasDigest());
+        assertEquals(500.5d, valueCollector.quantile(0.5), 1d);
+        assertEquals(990.5d, valueCollector.quantile(0.99), 1d);
+        assertEquals(500d, valueCollector.getInterQuartileRange(), 2d);
+
+        NumericAggregateCollector copy = new NumericAggregateCollector();
+        copy.fromAvro(valueCollector.toAvro());
+        assertEquals(valueCollector, copy);
+        assertThrows(IllegalStateException.class,
+                () -> new NumericAggregateCollector("test", false).quantile(0.5));
+    }
 }
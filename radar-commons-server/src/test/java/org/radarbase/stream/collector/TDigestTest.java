@@ -0,0 +1,84 @@
+package org.radarbase.stream.collector;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class TDigestTest {
+    @Test
+    public void empty() {
+        TDigest digest = new TDigest();
+        assertEquals(0, digest.getCount());
+        assertTrue(Double.isNaN(digest.quantile(0.5)));
+        assertThrows(IllegalArgumentException.class, () -> digest.quantile(1.5));
+    }
+
+    @Test
+    public void small() {
+        TDigest digest = new TDigest();
+        digest.addAll(new double[] {5.0, 1.0, 3.0});
+        assertEquals(3, digest.getCount());
+        assertEquals(1.0, digest.quantile(0.0), 0.0);
+        assertEquals(3.0, digest.quantile(0.5), 0.0);
+        assertEquals(5.0, digest.quantile(1.0), 0.0);
+    }
+
+    @Test
+    public void uniform() {
+        TDigest digest = new TDigest();
+        Random random = new Random(1L);
+        for (int i = 0; i < 100_000; i++) {
+            digest.add(random.nextDouble());
+        }
+        assertEquals(100_000, digest.getCount());
+        assertTrue(digest.getSize() <= 2 * digest.getCompression());
+        for (double q : new double[] {0.001, 0.01, 0.25, 0.5, 0.75, 0.99, 0.999}) {
+            assertEquals(q, digest.quantile(q), 0.01);
+        }
+        assertEquals(3, digest.getQuartiles().size());
+    }
+
+    @Test
+    public void merge() {
+        TDigest digest = new TDigest();
+        TDigest other = new TDigest();
+        TDigest combined = new TDigest();
+        Random random = new Random(2L);
+        for (int i = 0; i < 50_000; i++) {
+            double value = random.nextGaussian();
+            if (i % 4 == 0) {
+                other.add(value);
+            } else {
+                digest.add(value);
+            }
+            combined.add(value);
+        }
+        long otherCount = other.getCount();
+        digest.merge(other);
+        assertEquals(50_000, digest.getCount());
+        assertEquals(otherCount, other.getCount());
+        assertEquals(combined.getMin(), digest.getMin(), 0.0);
+        assertEquals(combined.getMax(), digest.getMax(), 0.0);
+        for (double q : new double[] {0.01, 0.25, 0.5, 0.75, 0.99}) {
+            assertEquals(combined.quantile(q), digest.quantile(q), 0.02);
+        }
+    }
+
+    @Test
+    public void serialization() {
+        TDigest digest = new TDigest(50);
+        Random random = new Random(3L);
+        for (int i = 0; i < 10_000; i++) {
+            digest.add(random.nextDouble() * 10);
+        }
+        TDigestState state = digest.toAvro();
+        TDigest copy = new TDigest();
+        copy.fromAvro(state);
+        assertEquals(digest, copy);
+        assertEquals(state, copy.toAvro());
+        assertEquals(digest.quantile(0.9), copy.quantile(0.9), 0.0);
+    }
+}
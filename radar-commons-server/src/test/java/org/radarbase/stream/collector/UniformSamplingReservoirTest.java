@@ -3,6 +3,7 @@ package org.radarbase.stream.collector;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
@@ -51,6 +52,51 @@ public class UniformSamplingReservoirTest {
         assertEquals(50, reservoir.getSamples().size());
     }
 
+    @Test
+    public void addDeferredSort() {
+        UniformSamplingReservoir reservoir = new UniformSamplingReservoir(new double[0], 0, 50, true);
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < 1000; i++) {
+            reservoir.add(random.nextDouble(-1.0, 1.0));
+            if (i % 100 == 0) {
+                assertTrue(isOrdered(reservoir.getSamples()));
+            }
+        }
+        assertEquals(1000, reservoir.getCount());
+        assertEquals(50, reservoir.getSamples().size());
+        assertTrue(isOrdered(reservoir.getSamples()));
+    }
+
+    @Test
+    public void addUniformDistribution() {
+        int[] deciles = new int[10];
+        double[] values = new double[10_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        for (int run = 0; run < 200; run++) {
+            UniformSamplingReservoir reservoir = new UniformSamplingReservoir(
+                    new double[0], 0, 100, run % 2 == 0);
+            if (run % 4 < 2) {
+                reservoir.addAll(values);
+            } else {
+                for (double value : values) {
+                    reservoir.add(value);
+                }
+            }
+            assertEquals(values.length, reservoir.getCount());
+            assertEquals(100, reservoir.getSamples().size());
+            for (double sample : reservoir.getSamples()) {
+                deciles[(int) (sample / 1000)]++;
+            }
+        }
+        // 20000 samples in total, 2000 expected per decile
+        for (int decile : deciles) {
+            assertEquals(2000, decile, 200);
+        }
+    }
+
     private static <T extends Comparable<T>> boolean isOrdered(List<T> list) {
         Iterator<T> iterator = list.iterator();
         if (!iterator.hasNext()) {
@@ -66,4 +112,85 @@ public class UniformSamplingReservoirTest {
         }
         return true;
     }
+
+    @Test
+    public void mergeSmall() {
+        UniformSamplingReservoir reservoir = new UniformSamplingReservoir(new double[] {0.1, 0.5}, 2, 5);
+        UniformSamplingReservoir other = new UniformSamplingReservoir(new double[] {0.3, -1.0}, 2, 5);
+        reservoir.merge(other);
+        assertEquals(Arrays.asList(-1.0, 0.1, 0.3, 0.5), reservoir.getSamples());
+        assertEquals(4, reservoir.getCount());
+        assertEquals(2, other.getCount());
+    }
+
+    @Test
+    public void mergeWeighted() {
+        int fromFirst = 0;
+        for (int i = 0; i < 100; i++) {
+            UniformSamplingReservoir reservoir = new UniformSamplingReservoir(new double[0], 0, 50);
+            UniformSamplingReservoir other = new UniformSamplingReservoir(new double[0], 0, 50);
+            for (int j = 0; j < 900; j++) {
+                reservoir.add(-1.0);
+            }
+            for (int j = 0; j < 100; j++) {
+                other.add(1.0);
+            }
+            reservoir.merge(other);
+            assertEquals(50, reservoir.getSamples().size());
+            assertEquals(1000, reservoir.getCount());
+            assertTrue(isOrdered(reservoir.getSamples()));
+            for (double sample : reservoir.getSamples()) {
+                if (sample < 0) {
+                    fromFirst++;
+                }
+            }
+        }
+        // expected fraction 0.9 of 5000 samples
+        assertEquals(4500, fromFirst, 150);
+    }
+
+    @Test
+    public void mergeDifferentMaxSize() {
+        UniformSamplingReservoir reservoir = new UniformSamplingReservoir(new double[0], 0, 100);
+        for (int i = 0; i < 10; i++) {
+            reservoir.add(-1.0);
+        }
+        UniformSamplingReservoir other = new UniformSamplingReservoir(new double[0], 0, 10);
+        for (int i = 0; i < 990; i++) {
+            other.add(1.0);
+        }
+        reservoir.merge(other);
+        assertEquals(1000, reservoir.getCount());
+        // the other reservoir only holds 10 samples to represent its 990 values
+        assertEquals(10, reservoir.getSamples().size());
+        long negative = reservoir.getSamples().stream().filter(s -> s < 0).count();
+        // expected fraction 0.01 of 10 samples
+        assertTrue(negative <= 3, "Too many samples from the smaller stream: " + negative);
+
+        for (int i = 0; i < 1000; i++) {
+            reservoir.add(2.0);
+        }
+        assertEquals(2000, reservoir.getCount());
+        assertEquals(10, reservoir.getSamples().size());
+        assertTrue(isOrdered(reservoir.getSamples()));
+    }
+
+    @Test
+    public void mergeShrinksReservoir() {
+        UniformSamplingReservoir reservoir = new UniformSamplingReservoir(new double[0], 0, 4);
+        for (int i = 0; i < 100; i++) {
+            reservoir.add(i);
+        }
+        UniformSamplingReservoir other = new UniformSamplingReservoir(
+                new double[] {-2.0, -1.0}, 10, 4);
+        reservoir.merge(other);
+        assertEquals(110, reservoir.getCount());
+        // the other reservoir only holds 2 samples to represent its 10 values
+        assertEquals(2, reservoir.getSamples().size());
+
+        double[] samples = reservoir.getSamples().stream().mapToDouble(d -> d).toArray();
+        UniformSamplingReservoir copy = new UniformSamplingReservoir(samples, 110, 4);
+        assertEquals(copy, reservoir);
+        assertEquals(copy.hashCode(), reservoir.hashCode());
+    }
 }
@@ -0,0 +1,63 @@
+package org.radarbase.util
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import kotlin.concurrent.thread
+import kotlin.time.Duration.Companion.milliseconds
+import kotlin.time.Duration.Companion.seconds
+import kotlin.time.TestTimeSource
+
+class RollingTimeAverageTest {
+    @Test
+    fun average() {
+        val timeSource = TestTimeSource()
+        val average = RollingTimeAverage(10.seconds, 10, timeSource)
+        assertFalse(average.hasAverage)
+        assertEquals(0.0, average.average)
+
+        average.add(5.0)
+        timeSource += 1.seconds
+        average.add(5.0)
+        timeSource += 1.seconds
+        assertTrue(average.hasAverage)
+        assertEquals(5.0, average.average, 1e-9)
+        assertEquals(5L, average.count)
+
+        timeSource += 8.seconds
+        // first value has slid out of the window, the second remains
+        assertEquals(5.0 / 9, average.average, 1e-9)
+
+        timeSource += 10.seconds
+        assertEquals(0.0, average.average, 1e-9)
+    }
+
+    @Test
+    fun increment() {
+        val timeSource = TestTimeSource()
+        val average = RollingTimeAverage(1.seconds, 10, timeSource)
+        repeat(100) {
+            average.increment()
+            timeSource += 10.milliseconds
+        }
+        assertEquals(100.0, average.average, 1e-9)
+    }
+
+    @Test
+    fun concurrentAdd() {
+        val timeSource = TestTimeSource()
+        val average = RollingTimeAverage(10.seconds, 10, timeSource)
+        timeSource += 1.seconds
+        average.add(0.0)
+        timeSource += 1.seconds
+        (0 until 8)
+            .map {
+                thread {
+                    repeat(10_000) { average.increment() }
+                }
+            }
+            .forEach { it.join() }
+        assertEquals(80_000.0, average.average, 1e-6)
+    }
+}
@@ -16,7 +16,7 @@
 package org.radarbase.mock
 
 import com.opencsv.exceptions.CsvValidationException
-import io.ktor.client.plugins.auth.Auth
+import io.ktor.client.HttpClient
 import io.ktor.client.plugins.defaultRequest
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
@@ -29,7 +29,7 @@ import org.apache.avro.SchemaValidationException
 import org.radarbase.config.ServerConfig
 import org.radarbase.config.YamlConfigLoader
 import org.radarbase.ktor.auth.ClientCredentialsConfig
-import org.radarbase.ktor.auth.clientCredentials
+import org.radarbase.ktor.auth.installClientCredentials
 import org.radarbase.mock.config.AuthConfig
 import org.radarbase.mock.config.BasicMockConfig
 import org.radarbase.mock.config.MockDataConfig
@@ -37,6 +37,7 @@ import org.radarbase.mock.data.MockCsvParser
 import org.radarbase.mock.data.RecordGenerator
 import org.radarbase.producer.KafkaSender
 import org.radarbase.producer.io.GzipContentEncoding
+import org.radarbase.producer.io.HttpTransport
 import org.radarbase.producer.io.timeout
 import org.radarbase.producer.rest.ConnectionState
 import org.radarbase.producer.rest.RestKafkaSender.Companion.restKafkaSender
@@ -75,17 +76,24 @@ class MockProducer @JvmOverloads constructor(
     private val retriever: SchemaRetriever
     private val job: Job = SupervisorJob()
 
+    /**
+     * All senders derive their client from this one, so they share its engine and connection
+     * pool while keeping their own headers and authentication. It is closed again if the rest
+     * of the configuration fails, because [shutdown] cannot be called in that case.
+     */
+    private val httpClient: HttpClient = HttpTransport.HTTP_1_1.createClient()
+
     init {
-        val numDevices = mockConfig.numberOfDevices
-        val schemaRetrieverUrl = requireNotNull(mockConfig.schemaRegistry?.urlString) { "Missing schema retriever URL in config" }
-        retriever = schemaRetriever(schemaRetrieverUrl) {
-            httpClient {
-                timeout(10.seconds)
-            }
-        }
-        val dataConfigs = mockConfig.data
-            ?: defaultDataConfig()
         try {
+            val numDevices = mockConfig.numberOfDevices
+            val schemaRetrieverUrl = requireNotNull(mockConfig.schemaRegistry?.urlString) { "Missing schema retriever URL in config" }
+            retriever = schemaRetriever(schemaRetrieverUrl) {
+                httpClient {
+                    timeout(10.seconds)
+                }
+            }
+            val dataConfigs = mockConfig.data
+                ?: defaultDataConfig()
             val generators: List<RecordGenerator<ObservationKey>> = createGenerators(dataConfigs)
             val mockFiles: List<MockCsvParser> = createMockFiles(dataConfigs, root)
             senders = createSenders(
@@ -108,9 +116,12 @@ class MockProducer @JvmOverloads constructor(
             for (i in mockFiles.indices) {
                 files.add(MockFileSender(senders[i + numDevices], mockFiles[i]))
             }
-        } catch (ex: CsvValidationException) {
-            throw IOException("Cannot read CSV file", ex)
-        } catch (ex: Exception) {
+        } catch (ex: Throwable) {
+            job.cancel()
+            httpClient.close()
+            if (ex is CsvValidationException) {
+                throw IOException("Cannot read CSV file", ex)
+            }
             throw ex
         }
     }
@@ -145,22 +156,22 @@ class MockProducer @JvmOverloads constructor(
                     this.scope = scope
                     schemaRetriever = retriever
                     connectionState = sharedState
+                    httpClient = this@MockProducer.httpClient
 
                     httpClient {
                         defaultRequest {
                             url(restProxy.urlString)
                         }
                         if (authConfig != null) {
-                            install(Auth) {
-                                clientCredentials(
-                                    ClientCredentialsConfig(
-                                        requireNotNull(authConfig.tokenUrl) { "Missing authentication token URL in config" },
-                                        authConfig.clientId,
-                                        authConfig.clientSecret,
-                                    ).copyWithEnv(),
-                                    restProxy.host,
-                                )
-                            }
+                            installClientCredentials(
+                                ClientCredentialsConfig(
+                                    requireNotNull(authConfig.tokenUrl) { "Missing authentication token URL in config" },
+                                    authConfig.clientId,
+                                    authConfig.clientSecret,
+                                ).copyWithEnv(),
+                                restProxy.host,
+                                shareTokens = true,
+                            )
                         }
                         if (useCompression) {
                             install(GzipContentEncoding)
@@ -199,6 +210,7 @@ class MockProducer @JvmOverloads constructor(
             cancel()
             join()
         }
+        httpClient.close()
         for (device in devices) {
             device.checkException()
         }
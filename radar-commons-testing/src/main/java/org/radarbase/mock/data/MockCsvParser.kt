@@ -26,7 +26,7 @@ import org.radarbase.data.Record
 import org.radarbase.mock.config.MockDataConfig
 import org.radarbase.producer.schema.SchemaRetriever
 import org.radarbase.topic.AvroTopic
-import org.radarbase.topic.AvroTopic.Companion.parseSpecificRecord
+import org.radarbase.topic.TopicRegistry
 import java.io.BufferedReader
 import java.io.Closeable
 import java.io.IOException
@@ -83,12 +83,12 @@ class MockCsvParser(
             Pair(specificTopic.keySchema, specificTopic.valueSchema)
         } catch (ex: IllegalStateException) {
             Pair(
-                parseSpecificRecord<SpecificRecord>(requireNotNull(config.keySchema) { "Missing key schema" }).schema,
+                TopicRegistry.default.specificSchema(requireNotNull(config.keySchema) { "Missing key schema" }),
                 retriever.getByVersion(topicName, true, 0).schema,
             )
         }
 
-        topic = AvroTopic(
+        topic = TopicRegistry.default.topic(
             topicName,
             keySchema,
             valueSchema,
@@ -25,6 +25,7 @@ dependencies {
     api(platform(libs.ktor.bom))
     api(libs.ktor.client.core)
     api(libs.ktor.client.cio)
+    implementation(libs.ktor.client.java)
     api(libs.ktor.client.auth)
     implementation(libs.ktor.client.content.negotiation)
     implementation(libs.ktor.serialization.kotlinx.json)
@@ -37,6 +38,7 @@ dependencies {
     testImplementation(libs.mockito.core)
     testImplementation(libs.mockito.kotlin)
     testImplementation(libs.okhttp.mockwebserver)
+    testImplementation(libs.okhttp.tls)
     testImplementation(libs.kotlinx.coroutines.test)
     testRuntimeOnly(libs.slf4j.simple)
 }
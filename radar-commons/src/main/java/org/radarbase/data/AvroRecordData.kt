@@ -1,6 +1,5 @@
 package org.radarbase.data
 
-import org.apache.avro.generic.IndexedRecord
 import org.radarbase.topic.AvroTopic
 
 /**
@@ -25,11 +24,8 @@ class AvroRecordData<K : Any, V : Any>(
         require(records.isNotEmpty()) { "Records should not be empty." }
     }
 
-    override val sourceId: String? by lazy {
-        val sourceIdField = topic.keySchema.getField("sourceId") ?: return@lazy null
-        if (key !is IndexedRecord) return@lazy null
-        key.get(sourceIdField.pos()).toString()
-    }
+    override val sourceId: String?
+        get() = topic.descriptor.sourceId(key)
 
     override fun iterator(): Iterator<V> = records.iterator()
 
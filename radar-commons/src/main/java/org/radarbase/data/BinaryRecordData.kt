@@ -0,0 +1,21 @@
+package org.radarbase.data
+
+import org.radarbase.producer.io.BinaryEncoder
+import java.io.IOException
+
+/**
+ * Record data that can write its values in Avro binary encoding directly, without
+ * materializing each value as a record first.
+ * @param <K> key type
+ * @param <V> value type
+ */
+interface BinaryRecordData<K : Any, V : Any> : RecordData<K, V> {
+    /**
+     * Write all values as items of an Avro array of bytes. For each value, this calls
+     * [BinaryEncoder.startItem] and then writes the binary encoding of the value with the
+     * topic value schema as a bytes field. The array start, item count and array end are written
+     * by the caller.
+     */
+    @Throws(IOException::class)
+    suspend fun writeBinaryValues(encoder: BinaryEncoder)
+}
@@ -0,0 +1,257 @@
+package org.radarbase.data
+
+import org.apache.avro.Schema
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.IndexedRecord
+import org.apache.avro.io.BinaryData
+import org.radarbase.producer.io.BinaryEncoder
+import org.radarbase.topic.AvroTopic
+import java.io.IOException
+
+/**
+ * Record data stored per field in primitive arrays. This is intended for high-frequency numeric
+ * topics, where storing a list of records would create an object and a boxed number per field per
+ * sample. Values are only materialized as records when iterating over them; binary encoding
+ * writes the primitive columns directly.
+ *
+ * All fields of the value schema must be of type double, float, long, int or boolean.
+ * This class is not thread-safe.
+ *
+ * @param topic data topic
+ * @param key data key
+ * @param initialCapacity initial number of values that can be stored without resizing.
+ * @throws IllegalArgumentException if the value schema contains non-primitive fields.
+ */
+class ColumnarRecordData<K : Any, V : Any>(
+    override val topic: AvroTopic<K, V>,
+    override val key: K,
+    initialCapacity: Int = 16,
+) : BinaryRecordData<K, V> {
+    private val fieldTypes: List<Schema.Type> = requireNotNull(topic.descriptor.valueFieldTypes) {
+        "Columnar record data requires a record value schema"
+    }
+    private val columns: Array<Any>
+    private val maxEncodedSize: Int
+    private var capacity = initialCapacity.coerceAtLeast(1)
+    private var size = 0
+
+    init {
+        var encodedSize = 0
+        columns = Array(fieldTypes.size) { i ->
+            when (fieldTypes[i]) {
+                Schema.Type.DOUBLE -> {
+                    encodedSize += 8
+                    DoubleArray(capacity)
+                }
+                Schema.Type.FLOAT -> {
+                    encodedSize += 4
+                    FloatArray(capacity)
+                }
+                Schema.Type.LONG -> {
+                    encodedSize += 10
+                    LongArray(capacity)
+                }
+                Schema.Type.INT -> {
+                    encodedSize += 5
+                    IntArray(capacity)
+                }
+                Schema.Type.BOOLEAN -> {
+                    encodedSize += 1
+                    BooleanArray(capacity)
+                }
+                else -> throw IllegalArgumentException(
+                    "Field ${topic.valueSchema.fields[i].name()} of type ${fieldTypes[i]} " +
+                        "cannot be stored in columnar record data",
+                )
+            }
+        }
+        maxEncodedSize = encodedSize
+    }
+
+    override val sourceId: String?
+        get() = topic.descriptor.sourceId(key)
+
+    override val isEmpty: Boolean
+        get() = size == 0
+
+    override fun size(): Int = size
+
+    /**
+     * Append a new value with all fields set to zero or false.
+     * @return index of the new value, to be used with the setters.
+     */
+    fun addRow(): Int {
+        if (size == capacity) {
+            grow()
+        }
+        return size++
+    }
+
+    /**
+     * Append a record. The record must have the topic value schema.
+     * @return index of the new value.
+     */
+    fun add(record: IndexedRecord): Int {
+        val row = addRow()
+        for (field in fieldTypes.indices) {
+            when (val column = columns[field]) {
+                is DoubleArray -> column[row] = (record[field] as Number).toDouble()
+                is FloatArray -> column[row] = (record[field] as Number).toFloat()
+                is LongArray -> column[row] = (record[field] as Number).toLong()
+                is IntArray -> column[row] = (record[field] as Number).toInt()
+                is BooleanArray -> column[row] = record[field] as Boolean
+            }
+        }
+        return row
+    }
+
+    operator fun set(row: Int, field: Int, value: Double) {
+        (columns[field] as DoubleArray)[checkRow(row)] = value
+    }
+
+    operator fun set(row: Int, field: Int, value: Float) {
+        (columns[field] as FloatArray)[checkRow(row)] = value
+    }
+
+    operator fun set(row: Int, field: Int, value: Long) {
+        (columns[field] as LongArray)[checkRow(row)] = value
+    }
+
+    operator fun set(row: Int, field: Int, value: Int) {
+        (columns[field] as IntArray)[checkRow(row)] = value
+    }
+
+    operator fun set(row: Int, field: Int, value: Boolean) {
+        (columns[field] as BooleanArray)[checkRow(row)] = value
+    }
+
+    fun getDouble(row: Int, field: Int): Double = (columns[field] as DoubleArray)[checkRow(row)]
+
+    fun getFloat(row: Int, field: Int): Float = (columns[field] as FloatArray)[checkRow(row)]
+
+    fun getLong(row: Int, field: Int): Long = (columns[field] as LongArray)[checkRow(row)]
+
+    fun getInt(row: Int, field: Int): Int = (columns[field] as IntArray)[checkRow(row)]
+
+    fun getBoolean(row: Int, field: Int): Boolean = (columns[field] as BooleanArray)[checkRow(row)]
+
+    /** Get the value of given field in given row as a boxed object. */
+    operator fun get(row: Int, field: Int): Any {
+        checkRow(row)
+        return when (val column = columns[field]) {
+            is DoubleArray -> column[row]
+            is FloatArray -> column[row]
+            is LongArray -> column[row]
+            is IntArray -> column[row]
+            is BooleanArray -> column[row]
+            else -> throw IllegalStateException("Unknown column type")
+        }
+    }
+
+    /**
+     * Copy a range of rows of a numeric field to a double array, widening values as needed.
+     * @param field field position in the value schema.
+     * @param destination array to copy values to.
+     * @param destinationOffset position in [destination] to write the first value to.
+     * @param startRow first row to copy, inclusive.
+     * @param endRow last row to copy, exclusive.
+     * @throws IllegalArgumentException if the field is a boolean field.
+     */
+    @JvmOverloads
+    fun copyDoubles(
+        field: Int,
+        destination: DoubleArray,
+        destinationOffset: Int = 0,
+        startRow: Int = 0,
+        endRow: Int = size,
+    ) {
+        if (startRow < 0 || endRow > size || startRow > endRow) {
+            throw IndexOutOfBoundsException("Rows [$startRow, $endRow) out of bounds for size $size")
+        }
+        when (val column = columns[field]) {
+            is DoubleArray -> column.copyInto(destination, destinationOffset, startRow, endRow)
+            is FloatArray -> for (row in startRow until endRow) {
+                destination[destinationOffset + row - startRow] = column[row].toDouble()
+            }
+            is LongArray -> for (row in startRow until endRow) {
+                destination[destinationOffset + row - startRow] = column[row].toDouble()
+            }
+            is IntArray -> for (row in startRow until endRow) {
+                destination[destinationOffset + row - startRow] = column[row].toDouble()
+            }
+            else -> throw IllegalArgumentException("Field $field is not numeric")
+        }
+    }
+
+    /** Remove all values, keeping the allocated capacity. */
+    fun clear() {
+        size = 0
+    }
+
+    @Throws(IOException::class)
+    override suspend fun writeBinaryValues(encoder: BinaryEncoder) {
+        val buffer = ByteArray(maxEncodedSize)
+        for (row in 0 until size) {
+            var length = 0
+            for (field in columns.indices) {
+                length += when (val column = columns[field]) {
+                    is DoubleArray -> BinaryData.encodeDouble(column[row], buffer, length)
+                    is FloatArray -> BinaryData.encodeFloat(column[row], buffer, length)
+                    is LongArray -> BinaryData.encodeLong(column[row], buffer, length)
+                    is IntArray -> BinaryData.encodeInt(column[row], buffer, length)
+                    is BooleanArray -> BinaryData.encodeBoolean(column[row], buffer, length)
+                    else -> throw IllegalStateException("Unknown column type")
+                }
+            }
+            encoder.startItem()
+            encoder.writeBytes(buffer, 0, length)
+        }
+    }
+
+    /**
+     * Iterate over the values. Each value is materialized as a new record of the topic value
+     * class.
+     */
+    override fun iterator(): Iterator<V> = object : Iterator<V> {
+        private var row = 0
+
+        override fun hasNext(): Boolean = row < size
+
+        override fun next(): V {
+            if (row >= size) throw NoSuchElementException()
+            return toRecord(row++)
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun toRecord(row: Int): V {
+        val record: IndexedRecord = if (topic.descriptor.isSpecificValue) {
+            topic.newValueInstance() as IndexedRecord
+        } else {
+            GenericData.Record(topic.valueSchema)
+        }
+        for (field in columns.indices) {
+            record.put(field, get(row, field))
+        }
+        return record as V
+    }
+
+    private fun checkRow(row: Int): Int {
+        if (row < 0 || row >= size) throw IndexOutOfBoundsException("Row $row out of bounds for size $size")
+        return row
+    }
+
+    private fun grow() {
+        capacity *= 2
+        for (field in columns.indices) {
+            columns[field] = when (val column = columns[field]) {
+                is DoubleArray -> column.copyOf(capacity)
+                is FloatArray -> column.copyOf(capacity)
+                is LongArray -> column.copyOf(capacity)
+                is IntArray -> column.copyOf(capacity)
+                is BooleanArray -> column.copyOf(capacity)
+                else -> throw IllegalStateException("Unknown column type")
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.radarbase.data
+
+import org.apache.avro.io.BinaryDecoder
+import org.apache.avro.io.DatumReader
+import org.apache.avro.io.DatumWriter
+import org.apache.avro.io.DecoderFactory
+import org.apache.avro.io.EncoderFactory
+import org.radarbase.producer.io.BinaryEncoder
+import org.radarbase.topic.AvroTopic
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.BufferOverflowException
+import java.nio.ByteBuffer
+
+/**
+ * Record data that stores its values Avro binary encoded in a direct byte buffer, outside of the
+ * Java heap. Values are encoded when they are added, so the heap usage does not depend on the
+ * number of buffered values. When sending, the encoded bytes are streamed directly from the
+ * buffer. Iterating over the values decodes them again.
+ *
+ * The direct memory is released when this object is garbage collected. This class is not
+ * thread-safe.
+ *
+ * @param topic data topic
+ * @param key data key
+ * @param initialCapacity initial buffer size in bytes.
+ * @param maxCapacity maximum buffer size in bytes.
+ */
+class OffHeapRecordData<K : Any, V : Any>(
+    override val topic: AvroTopic<K, V>,
+    override val key: K,
+    initialCapacity: Int = 4096,
+    private val maxCapacity: Int = Int.MAX_VALUE,
+) : BinaryRecordData<K, V> {
+    private val writer: DatumWriter<V> = topic.descriptor.createValueWriter()
+    private val scratch = ScratchOutputStream()
+    private val encoder = EncoderFactory.get().directBinaryEncoder(scratch, null)
+
+    init {
+        require(maxCapacity >= LENGTH_PREFIX_SIZE) { "Maximum capacity is too small" }
+    }
+
+    private var buffer: ByteBuffer = ByteBuffer.allocateDirect(
+        initialCapacity.coerceIn(LENGTH_PREFIX_SIZE, maxCapacity),
+    )
+    private var size = 0
+
+    override val sourceId: String?
+        get() = topic.descriptor.sourceId(key)
+
+    override val isEmpty: Boolean
+        get() = size == 0
+
+    override fun size(): Int = size
+
+    /** Number of bytes used in the buffer. */
+    val byteSize: Int
+        get() = buffer.position()
+
+    /**
+     * Encode a value and append it to the buffer.
+     * @throws BufferOverflowException if the encoded value does not fit within [maxCapacity].
+     * @throws IOException if the value cannot be encoded.
+     */
+    @Throws(IOException::class)
+    fun add(value: V) {
+        try {
+            writer.write(value, encoder)
+            encoder.flush()
+            val length = scratch.size()
+            ensureCapacity(LENGTH_PREFIX_SIZE + length)
+            buffer.putInt(length)
+            scratch.copyTo(buffer)
+            size++
+        } finally {
+            scratch.reset()
+        }
+    }
+
+    /** Remove all values, keeping the allocated buffer. */
+    fun clear() {
+        buffer.clear()
+        size = 0
+    }
+
+    @Throws(IOException::class)
+    override suspend fun writeBinaryValues(encoder: BinaryEncoder) {
+        val values = buffer.duplicate().flip()
+        while (values.hasRemaining()) {
+            val length = values.getInt()
+            val end = values.position() + length
+            encoder.startItem()
+            encoder.writeBytes(values.limit(end))
+            values.position(end).limit(buffer.position())
+        }
+    }
+
+    /** Iterate over the values. Each value is decoded from the buffer as a new record. */
+    override fun iterator(): Iterator<V> = object : Iterator<V> {
+        @Suppress("UNCHECKED_CAST")
+        private val reader = topic.descriptor.valueData.createDatumReader(topic.valueSchema) as DatumReader<V>
+        private val values = buffer.duplicate().flip()
+        private var bytes = ByteArray(0)
+        private var decoder: BinaryDecoder? = null
+
+        override fun hasNext(): Boolean = values.hasRemaining()
+
+        override fun next(): V {
+            if (!values.hasRemaining()) throw NoSuchElementException()
+            val length = values.getInt()
+            if (bytes.size < length) {
+                bytes = ByteArray(length)
+            }
+            values.get(bytes, 0, length)
+            return DecoderFactory.get().binaryDecoder(bytes, 0, length, decoder)
+                .also { decoder = it }
+                .let { reader.read(null, it) }
+        }
+    }
+
+    private fun ensureCapacity(required: Int) {
+        if (buffer.remaining() >= required) return
+        val minCapacity = buffer.position().toLong() + required
+        if (minCapacity > maxCapacity) throw BufferOverflowException()
+        val newCapacity = (buffer.capacity().toLong() * 2)
+            .coerceIn(minCapacity, maxCapacity.toLong())
+            .toInt()
+        val newBuffer = ByteBuffer.allocateDirect(newCapacity)
+        newBuffer.put(buffer.flip())
+        buffer = newBuffer
+    }
+
+    /** Output stream that can copy its contents without allocating a new array. */
+    private class ScratchOutputStream : ByteArrayOutputStream() {
+        fun copyTo(target: ByteBuffer) {
+            target.put(buf, 0, count)
+        }
+    }
+
+    companion object {
+        private const val LENGTH_PREFIX_SIZE = Int.SIZE_BYTES
+    }
+}
@@ -22,6 +22,7 @@ import io.ktor.utils.io.close
 import io.ktor.utils.io.writeByte
 import org.apache.avro.io.BinaryData
 import java.io.IOException
+import java.nio.ByteBuffer
 
 /**
  * An [Encoder] for Avro's binary encoding that does not buffer output.
@@ -106,6 +107,11 @@ class DirectBinaryEncoder(
         out.writeFully(bytes, start, len)
     }
 
+    @Throws(IOException::class)
+    override suspend fun writeFixed(bytes: ByteBuffer) {
+        out.writeFully(bytes.duplicate())
+    }
+
     @Throws(IOException::class)
     override suspend fun writeZero() {
         out.writeByte(0)
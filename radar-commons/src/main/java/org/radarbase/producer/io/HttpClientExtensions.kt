@@ -2,8 +2,10 @@ package org.radarbase.producer.io
 
 import io.ktor.client.HttpClientConfig
 import io.ktor.client.engine.cio.CIOEngineConfig
+import io.ktor.client.engine.java.JavaHttpConfig
 import io.ktor.client.plugins.HttpTimeout
 import java.security.cert.X509Certificate
+import javax.net.ssl.SSLContext
 import javax.net.ssl.X509TrustManager
 import kotlin.time.Duration
 
@@ -22,6 +24,14 @@ fun HttpClientConfig<*>.unsafeSsl() {
             https {
                 trustManager = UNSAFE_TRUST_MANAGER
             }
+        } else if (this is JavaHttpConfig) {
+            config {
+                sslContext(
+                    SSLContext.getInstance("TLS").apply {
+                        init(null, arrayOf(UNSAFE_TRUST_MANAGER), null)
+                    },
+                )
+            }
         }
     }
 }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 The Hyve and King's College London
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.radarbase.producer.io
+
+import io.ktor.client.HttpClient
+import io.ktor.client.HttpClientConfig
+import io.ktor.client.engine.cio.CIO
+import io.ktor.client.engine.cio.CIOEngineConfig
+import io.ktor.client.engine.java.Java
+import org.radarbase.util.RadarProducerDsl
+import kotlin.time.Duration
+import kotlin.time.Duration.Companion.seconds
+
+/**
+ * HTTP transport to use for REST clients.
+ */
+enum class HttpTransport {
+    /**
+     * HTTP/1.1 with the Ktor CIO engine. Every concurrent request needs its own connection, so
+     * the number of connections is bounded by [HttpConnectionPool.maxConnectionsPerRoute].
+     */
+    HTTP_1_1,
+
+    /**
+     * HTTP/2 with the Java HttpClient engine. This negotiates h2 over TLS with ALPN and tries an
+     * h2c upgrade over plain HTTP, falling back to HTTP/1.1 if the server does not support it.
+     * Concurrent requests to the same server are multiplexed over a single connection.
+     */
+    HTTP_2,
+    ;
+
+    /**
+     * Create a new HTTP client for this transport.
+     * @param pool connection pool settings.
+     * @param config additional client configuration.
+     */
+    fun createClient(
+        pool: HttpConnectionPool = HttpConnectionPool(),
+        config: HttpClientConfig<*>.() -> Unit = {},
+    ): HttpClient = when (this) {
+        HTTP_1_1 -> HttpClient(CIO) {
+            engine {
+                pool.configure(this)
+            }
+            config()
+        }
+        HTTP_2 -> HttpClient(Java) {
+            engine {
+                protocolVersion = java.net.http.HttpClient.Version.HTTP_2
+            }
+            config()
+        }
+    }
+}
+
+/**
+ * Connection pool settings for an HTTP client. Settings that do not apply to a given
+ * [HttpTransport] are ignored.
+ */
+@RadarProducerDsl
+data class HttpConnectionPool(
+    /** Maximum number of connections over all hosts. Only applies to HTTP/1.1. */
+    var maxConnections: Int = 1000,
+    /** Maximum number of connections per host. Only applies to HTTP/1.1. */
+    var maxConnectionsPerRoute: Int = 100,
+    /** Time to keep an idle connection open. Only applies to HTTP/1.1. */
+    var keepAlive: Duration = 5.seconds,
+    /** Whether to use HTTP/1.1 pipelining. With HTTP/2, requests are always multiplexed. */
+    var pipelining: Boolean = false,
+    /** Maximum number of pipelined requests per connection. Only applies to HTTP/1.1. */
+    var pipelineMaxSize: Int = 20,
+) {
+    init {
+        validate()
+    }
+
+    /**
+     * Check that the settings are valid. The properties are mutable, so this is checked again
+     * after they are modified and before they are applied.
+     * @throws IllegalArgumentException if a connection limit is not positive.
+     */
+    internal fun validate() {
+        require(maxConnections > 0) { "Maximum number of connections must be positive" }
+        require(maxConnectionsPerRoute > 0) { "Maximum number of connections per route must be positive" }
+    }
+
+    internal fun configure(config: CIOEngineConfig) = with(config) {
+        validate()
+        maxConnectionsCount = maxConnections
+        pipelining = this@HttpConnectionPool.pipelining
+        endpoint {
+            maxConnectionsPerRoute = this@HttpConnectionPool.maxConnectionsPerRoute
+            keepAliveTime = keepAlive.inWholeMilliseconds
+            pipelineMaxSize = this@HttpConnectionPool.pipelineMaxSize
+        }
+    }
+}
@@ -2,6 +2,7 @@ package org.radarbase.producer.rest
 
 import io.ktor.http.ContentType
 import io.ktor.http.content.OutgoingContent
+import org.radarbase.data.BinaryRecordData
 import org.radarbase.data.RecordData
 import org.radarbase.data.RemoteSchemaEncoder
 import org.radarbase.producer.avro.AvroDataMapperFactory
@@ -29,6 +30,9 @@ class BinaryRecordContent<V : Any>(
             "Cannot map record without source ID",
         )
 
+    /** Values can be written without conversion if the server uses the same value schema. */
+    private val canWriteDirectly = valueSchemaMetadata.schema == records.topic.valueSchema
+
     private val keySchemaVersion = requireNotNull(keySchemaMetadata.version) {
         "missing key schema version"
     }
@@ -55,9 +59,13 @@ class BinaryRecordContent<V : Any>(
         writeString(sourceId)
         writeArrayStart()
         setItemCount(records.size().toLong())
-        for (record in records) {
-            startItem()
-            writeBytes(valueEncoder.encode(record))
+        if (records is BinaryRecordData<*, *> && canWriteDirectly) {
+            records.writeBinaryValues(this)
+        } else {
+            for (record in records) {
+                startItem()
+                writeBytes(valueEncoder.encode(record))
+            }
         }
         writeArrayEnd()
         flush()
@@ -19,17 +19,17 @@ import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.ExperimentalCoroutinesApi
 import kotlinx.coroutines.Job
-import kotlinx.coroutines.channels.BufferOverflow.DROP_OLDEST
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.MutableSharedFlow
+import kotlinx.coroutines.flow.MutableStateFlow
 import kotlinx.coroutines.flow.SharingStarted
-import kotlinx.coroutines.flow.distinctUntilChanged
-import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.flow.stateIn
 import kotlinx.coroutines.flow.transformLatest
 import kotlinx.coroutines.plus
+import java.util.concurrent.atomic.AtomicLong
 import kotlin.coroutines.EmptyCoroutineContext
 import kotlin.time.Duration
+import kotlin.time.Duration.Companion.nanoseconds
 
 /**
  * Current connection status of a KafkaSender. After a timeout occurs this will turn to
@@ -40,15 +40,21 @@ import kotlin.time.Duration
  * [.getState] after a timeout occurs and [.didConnect]; and UNKNOWN to DISCONNECTED
  * with [.didDisconnect].
  *
+ * The state is stored as a single atomic state word together with the time of the last
+ * successful connection. Repeated calls to [didConnect] only update that timestamp, and the
+ * timeout to UNKNOWN is computed lazily when the state is read, so no coroutine is started per
+ * request. The [state] flow is shared in [scope], so all its collectors share a single timer.
  *
  * A connection state could be shared with multiple HTTP clients if they are talking to the same
  * server.
  *
- * @param timeout timeout after which the connected state will be reset to unknown.
+ * @param timeout timeout after which the connected state will be reset to unknown. This may be
+ *        [Duration.INFINITE].
+ * @param scope scope to share the [state] flow in.
  * @throws IllegalArgumentException if the timeout is not strictly positive.
  */
 class ConnectionState(
-    private val timeout: Duration,
+    timeout: Duration,
     scope: CoroutineScope = CoroutineScope(EmptyCoroutineContext),
 ) {
     /** State symbols of the connection.  */
@@ -56,44 +62,112 @@ class ConnectionState(
         CONNECTED, DISCONNECTED, UNKNOWN, UNAUTHORIZED
     }
 
+    init {
+        require(timeout.isPositive()) { "Timeout must be strictly positive" }
+    }
+
     val scope = scope + Job()
 
-    private val mutableState = MutableSharedFlow<State>(
-        extraBufferCapacity = 1,
-        onBufferOverflow = DROP_OLDEST,
-    )
+    /** Timeout in nanoseconds, [Long.MAX_VALUE] if it is infinite or too large to represent. */
+    private val timeoutNanos = timeout.inWholeNanoseconds
+
+    /**
+     * State word. The lowest bits encode the [State] ordinal, the remaining bits a generation
+     * counter, so that reconnecting after a timeout is observed as a change.
+     */
+    private val stateWord = MutableStateFlow(encode(State.UNKNOWN, 0L))
+
+    /**
+     * Time in [System.nanoTime] of the last successful connection. It is only used in the
+     * CONNECTED state, so its initial value is not relevant.
+     */
+    private val lastConnected = AtomicLong(System.nanoTime())
+
+    /** Current state, without suspending. */
+    val currentState: State
+        get() = stateWord.value.toState()
 
     @OptIn(ExperimentalCoroutinesApi::class)
-    val state: Flow<State> = mutableState
-        .transformLatest { state ->
+    val state: Flow<State> = stateWord
+        .transformLatest { word ->
+            val state = word.toState()
             emit(state)
             if (state == State.CONNECTED) {
-                delay(timeout)
+                // the last connection time may be updated while waiting
+                while (true) {
+                    val remaining = remainingNanos(System.nanoTime())
+                    if (remaining <= 0L) break
+                    delay(remaining.nanoseconds)
+                }
                 emit(State.UNKNOWN)
             }
         }
-        .distinctUntilChanged()
-        .shareIn(this.scope + Dispatchers.Unconfined, SharingStarted.Eagerly, replay = 1)
-
-    init {
-        mutableState.tryEmit(State.UNKNOWN)
-    }
+        .stateIn(this.scope + Dispatchers.Unconfined, SharingStarted.Eagerly, State.UNKNOWN)
 
     /** For a sender to indicate that a connection attempt succeeded.  */
-    suspend fun didConnect() {
-        mutableState.emit(State.CONNECTED)
-    }
+    suspend fun didConnect() = markConnected()
 
     /** For a sender to indicate that a connection attempt failed.  */
-    suspend fun didDisconnect() {
-        mutableState.emit(State.DISCONNECTED)
+    suspend fun didDisconnect() = update(State.DISCONNECTED)
+
+    suspend fun wasUnauthorized() = update(State.UNAUTHORIZED)
+
+    suspend fun reset() = update(State.UNKNOWN)
+
+    /**
+     * Mark the connection as connected. This never suspends; [didConnect] keeps its suspending
+     * signature for binary compatibility.
+     */
+    private fun markConnected() {
+        val now = System.nanoTime()
+        val previous = lastConnected.getAndSet(now)
+        while (true) {
+            val word = stateWord.value
+            if (word.stateOrdinal() == State.CONNECTED.ordinal && elapsedNanos(previous, now) < timeoutNanos) {
+                return
+            }
+            if (stateWord.compareAndSet(word, encode(State.CONNECTED, word.generation() + 1))) {
+                return
+            }
+        }
+    }
+
+    private fun update(state: State) {
+        while (true) {
+            val word = stateWord.value
+            if (word.stateOrdinal() == state.ordinal) return
+            if (stateWord.compareAndSet(word, encode(state, word.generation() + 1))) return
+        }
     }
 
-    suspend fun wasUnauthorized() {
-        mutableState.emit(State.UNAUTHORIZED)
+    /** Remaining time until the connection times out. This does not overflow for large timeouts. */
+    private fun remainingNanos(now: Long): Long = timeoutNanos - elapsedNanos(lastConnected.get(), now)
+
+    private fun Long.toState(): State {
+        val state = STATES[stateOrdinal()]
+        return if (state == State.CONNECTED && remainingNanos(System.nanoTime()) <= 0L) {
+            State.UNKNOWN
+        } else {
+            state
+        }
     }
 
-    suspend fun reset() {
-        mutableState.emit(State.UNKNOWN)
+    companion object {
+        private val STATES = State.values()
+        private const val STATE_BITS = 3
+        private const val STATE_MASK = (1L shl STATE_BITS) - 1L
+
+        private fun encode(state: State, generation: Long): Long =
+            (generation shl STATE_BITS) or state.ordinal.toLong()
+
+        private fun Long.stateOrdinal(): Int = (this and STATE_MASK).toInt()
+
+        private fun Long.generation(): Long = this ushr STATE_BITS
+
+        /**
+         * Time between two [System.nanoTime] values. This is not negative, even if [since] was
+         * updated after [now] was read.
+         */
+        private fun elapsedNanos(since: Long, now: Long): Long = (now - since).coerceAtLeast(0L)
     }
 }
@@ -17,7 +17,6 @@ package org.radarbase.producer.rest
 
 import io.ktor.client.HttpClient
 import io.ktor.client.HttpClientConfig
-import io.ktor.client.engine.cio.CIO
 import io.ktor.client.plugins.contentnegotiation.ContentNegotiation
 import io.ktor.client.plugins.defaultRequest
 import io.ktor.client.request.accept
@@ -43,7 +42,6 @@ import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.SupervisorJob
 import kotlinx.coroutines.async
 import kotlinx.coroutines.flow.Flow
-import kotlinx.coroutines.flow.first
 import kotlinx.coroutines.withContext
 import kotlinx.serialization.json.Json
 import org.apache.avro.SchemaValidationException
@@ -52,6 +50,8 @@ import org.radarbase.producer.AuthenticationException
 import org.radarbase.producer.KafkaSender
 import org.radarbase.producer.KafkaTopicSender
 import org.radarbase.producer.io.GzipContentEncoding
+import org.radarbase.producer.io.HttpConnectionPool
+import org.radarbase.producer.io.HttpTransport
 import org.radarbase.producer.io.UnsupportedMediaTypeException
 import org.radarbase.producer.io.timeout
 import org.radarbase.producer.io.unsafeSsl
@@ -93,6 +93,8 @@ class RestKafkaSender(config: Config) : KafkaSender {
     private val connectionTimeout: Duration = config.connectionTimeout
     private val contentEncoding = config.contentEncoding
     private val originalHttpClient = config.httpClient
+    private val transport = config.transport
+    private val connectionPool = config.connectionPool.copy()
 
     /**
      * Construct a RestSender.
@@ -100,7 +102,7 @@ class RestKafkaSender(config: Config) : KafkaSender {
     init {
         restClient = config.httpClient?.config {
             configure()
-        } ?: HttpClient(CIO) {
+        } ?: transport.createClient(connectionPool) {
             configure()
         }
     }
@@ -178,7 +180,7 @@ class RestKafkaSender(config: Config) : KafkaSender {
 
     @Throws(AuthenticationException::class)
     override suspend fun resetConnection(): Boolean {
-        if (connectionState.first() === ConnectionState.State.CONNECTED) {
+        if (_connectionState.currentState === ConnectionState.State.CONNECTED) {
             return true
         }
         val lastState = try {
@@ -229,6 +231,8 @@ class RestKafkaSender(config: Config) : KafkaSender {
         contentEncoding = this@RestKafkaSender.contentEncoding
         connectionTimeout = this@RestKafkaSender.connectionTimeout
         allowUnsafe = this@RestKafkaSender.allowUnsafe
+        transport = this@RestKafkaSender.transport
+        connectionPool = this@RestKafkaSender.connectionPool.copy()
     }
 
     @RadarProducerDsl
@@ -237,6 +241,13 @@ class RestKafkaSender(config: Config) : KafkaSender {
         var baseUrl: String? = null
         var schemaRetriever: SchemaRetriever? = null
         var connectionState: ConnectionState? = null
+
+        /**
+         * HTTP client to derive the sender client from. Clients derived with [HttpClient.config]
+         * share the engine and connection pool of the original client, so many senders can
+         * share a single client while each [httpClient] call adds its own headers and
+         * authentication.
+         */
         var httpClient: HttpClient? = null
         var headers = HeadersBuilder()
         var connectionTimeout: Duration = 30.seconds
@@ -244,9 +255,25 @@ class RestKafkaSender(config: Config) : KafkaSender {
         var allowUnsafe: Boolean = false
         var contentType: ContentType = KAFKA_REST_JSON_ENCODING
 
+        /**
+         * Transport to use when this configuration creates a new HTTP client. Set this before
+         * calling [httpClient]; it has no effect on an existing [httpClient].
+         */
+        var transport: HttpTransport = HttpTransport.HTTP_1_1
+
+        /**
+         * Connection pool settings used when this configuration creates a new HTTP client.
+         * Set this before calling [httpClient]; it has no effect on an existing [httpClient].
+         */
+        var connectionPool: HttpConnectionPool = HttpConnectionPool()
+
         fun httpClient(config: HttpClientConfig<*>.() -> Unit = {}) {
             httpClient = httpClient?.config(config)
-                ?: HttpClient(CIO, config)
+                ?: transport.createClient(connectionPool, config)
+        }
+
+        fun connectionPool(config: HttpConnectionPool.() -> Unit) {
+            connectionPool = connectionPool.copy().apply(config).apply { validate() }
         }
 
         fun schemaRetriever(schemaBaseUrl: String, builder: SchemaRetriever.Config.() -> Unit = {}) {
@@ -268,6 +295,8 @@ class RestKafkaSender(config: Config) : KafkaSender {
                 baseUrl == other.baseUrl &&
                 connectionTimeout == other.connectionTimeout &&
                 contentEncoding == other.contentEncoding &&
+                transport == other.transport &&
+                connectionPool == other.connectionPool &&
                 scope == other.scope
         }
         override fun hashCode(): Int = headers.hashCode()
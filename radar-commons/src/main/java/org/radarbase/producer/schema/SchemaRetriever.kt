@@ -24,6 +24,7 @@ import kotlinx.coroutines.launch
 import org.apache.avro.Schema
 import org.radarbase.kotlin.coroutines.CacheConfig
 import org.radarbase.kotlin.coroutines.CachedValue
+import org.radarbase.topic.TopicRegistry
 import org.radarbase.util.RadarProducerDsl
 import java.io.IOException
 import java.lang.ref.SoftReference
@@ -52,6 +53,9 @@ open class SchemaRetriever(config: Config) {
 
     private val schemaTimeout = config.schemaTimeout
 
+    /** Registry that schemas retrieved from the server are interned in. */
+    val topicRegistry: TopicRegistry = config.topicRegistry
+
     /**
      * Add schema metadata to the retriever. This implementation only adds it to the cache.
      * @return schema ID
@@ -100,7 +104,7 @@ open class SchemaRetriever(config: Config) {
     ): ParsedSchemaMetadata {
         val subject = subject(topic, ofValue)
         val schema = idCache[id]?.get()
-            ?: restClient.retrieveSchemaById(id)
+            ?: topicRegistry.intern(restClient.retrieveSchemaById(id))
 
         return cachedMetadata(subject, schema).get()
     }
@@ -147,7 +151,7 @@ open class SchemaRetriever(config: Config) {
         val useVersion = version.coerceAtLeast(0)
         val versionId = computeIfAbsent(useVersion) {
             CachedValue(schemaTimeout) {
-                val metadata = restClient.retrieveSchemaMetadata(subject, version)
+                val metadata = restClient.retrieveSchemaMetadata(subject, version).interned()
                 cachedMetadata(subject, metadata.schema).set(metadata)
                 idCache[metadata.id] = SoftReference(metadata.schema)
                 metadata
@@ -156,6 +160,11 @@ open class SchemaRetriever(config: Config) {
         return versionId
     }
 
+    private fun ParsedSchemaMetadata.interned(): ParsedSchemaMetadata {
+        val internedSchema = topicRegistry.intern(schema)
+        return if (internedSchema === schema) this else copy(schema = internedSchema)
+    }
+
     private suspend fun <T> MutableCollection<CachedValue<T>>.prune() {
         val iter = iterator()
         while (iter.hasNext()) {
@@ -209,6 +218,7 @@ open class SchemaRetriever(config: Config) {
         var httpClient: HttpClient? = null
         var schemaTimeout: CacheConfig = DEFAULT_SCHEMA_TIMEOUT_CONFIG
         var ioContext: CoroutineContext = Dispatchers.IO
+        var topicRegistry: TopicRegistry = TopicRegistry.default
         fun httpClient(config: HttpClientConfig<*>.() -> Unit) {
             httpClient = httpClient?.config(config)
                 ?: HttpClient(CIO)
@@ -223,10 +233,11 @@ open class SchemaRetriever(config: Config) {
             return baseUrl == other.baseUrl &&
                 httpClient == other.httpClient &&
                 schemaTimeout == other.schemaTimeout &&
-                ioContext == other.ioContext
+                ioContext == other.ioContext &&
+                topicRegistry == other.topicRegistry
         }
 
-        override fun hashCode(): Int = hash(baseUrl, httpClient, schemaTimeout, ioContext)
+        override fun hashCode(): Int = hash(baseUrl, httpClient, schemaTimeout, ioContext, topicRegistry)
     }
 
     fun config(config: Config.() -> Unit): SchemaRetriever {
@@ -243,6 +254,7 @@ open class SchemaRetriever(config: Config) {
         httpClient = this@SchemaRetriever.httpClient
         schemaTimeout = this@SchemaRetriever.schemaTimeout
         ioContext = this@SchemaRetriever.ioContext
+        topicRegistry = this@SchemaRetriever.topicRegistry
     }
 
     companion object {
@@ -34,15 +34,24 @@ open class AvroTopic<K : Any, V : Any>(
     val keyClass: Class<out K>,
     val valueClass: Class<out V>,
 ) : KafkaTopic(name) {
-    val valueFieldTypes: Array<Schema.Type>? = if (valueSchema.type == Schema.Type.RECORD) {
-        val fields = valueSchema.fields
-        Array(fields.size) { i ->
-            fields[i].schema().type
-        }
-    } else {
-        null
-    }
-        get() = field?.copyOf()
+    /** Metadata derived from the schemas and classes of this topic. */
+    val descriptor: AvroTopicDescriptor<K, V> = AvroTopicDescriptor(
+        keySchema,
+        valueSchema,
+        keyClass,
+        valueClass,
+    )
+
+    /**
+     * Types of the value fields, or null if the value is not a record. This returns a new array
+     * on every call.
+     */
+    @Deprecated(
+        "Use the immutable field types of the descriptor instead",
+        replaceWith = ReplaceWith("descriptor.valueFieldTypes?.toTypedArray()"),
+    )
+    val valueFieldTypes: Array<Schema.Type>?
+        get() = descriptor.valueFieldTypes?.toTypedArray()
 
     /**
      * Tries to construct a new SpecificData instance of the value.
@@ -70,7 +79,8 @@ open class AvroTopic<K : Any, V : Any>(
 
     companion object {
         /**
-         * Parse an AvroTopic.
+         * Parse an AvroTopic. The topic and its schemas are interned in
+         * [TopicRegistry.default].
          *
          * @throws IllegalArgumentException if the key_schema or value_schema properties are not valid
          * Avro SpecificRecord classes
@@ -79,20 +89,11 @@ open class AvroTopic<K : Any, V : Any>(
             topic: String,
             keySchema: String,
             valueSchema: String,
-        ): AvroTopic<K, V> {
-            val key = parseSpecificRecord<K>(keySchema)
-            val value = parseSpecificRecord<V>(valueSchema)
-            return AvroTopic(
-                topic,
-                key.schema,
-                value.schema,
-                key.javaClass,
-                value.javaClass,
-            )
-        }
+        ): AvroTopic<K, V> = TopicRegistry.default.specificTopic(topic, keySchema, valueSchema)
 
         /**
-         * Parse the schema of a single specific record.
+         * Parse the schema of a single specific record. The class is resolved through
+         * [TopicRegistry.default].
          *
          * @param schemaClass class name of the SpecificRecord to use
          * @param <K> class type to return
@@ -100,23 +101,11 @@ open class AvroTopic<K : Any, V : Any>(
          </K> */
         @Suppress("UNCHECKED_CAST")
         fun <K : SpecificRecord> parseSpecificRecord(schemaClass: String): K {
-            return try {
-                val keyClass = Class.forName(schemaClass)
-                val keyAvroSchema = keyClass
-                    .getMethod("getClassSchema").invoke(null) as Schema
-                // check instantiation
-                SpecificData.newInstance(keyClass, keyAvroSchema) as K
-            } catch (ex: ClassCastException) {
-                throw IllegalArgumentException(
-                    "Schema $schemaClass cannot be instantiated",
-                    ex,
-                )
-            } catch (ex: ReflectiveOperationException) {
-                throw IllegalArgumentException(
-                    "Schema $schemaClass cannot be instantiated",
-                    ex,
-                )
-            }
+            val registry = TopicRegistry.default
+            return SpecificData.newInstance(
+                registry.specificClass(schemaClass),
+                registry.specificSchema(schemaClass),
+            ) as K
         }
     }
 }
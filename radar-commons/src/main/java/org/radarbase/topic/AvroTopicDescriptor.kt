@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 The Hyve and King's College London
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.radarbase.topic
+
+import org.apache.avro.Schema
+import org.apache.avro.SchemaNormalization
+import org.apache.avro.generic.GenericData
+import org.apache.avro.generic.IndexedRecord
+import org.apache.avro.io.DatumWriter
+import org.apache.avro.specific.SpecificData
+import org.apache.avro.specific.SpecificRecord
+
+/**
+ * Immutable metadata derived from the schemas and classes of an [AvroTopic]. It is computed once
+ * per topic, so that per-batch and per-record code does not need to look it up again.
+ */
+class AvroTopicDescriptor<K : Any, V : Any> internal constructor(
+    private val keySchema: Schema,
+    private val valueSchema: Schema,
+    keyClass: Class<out K>,
+    valueClass: Class<out V>,
+) {
+    /** Position of the projectId field in the key, or -1 if it does not exist. */
+    val projectIdPos: Int = keySchema.fieldPos("projectId")
+
+    /** Position of the userId field in the key, or -1 if it does not exist. */
+    val userIdPos: Int = keySchema.fieldPos("userId")
+
+    /** Position of the sourceId field in the key, or -1 if it does not exist. */
+    val sourceIdPos: Int = keySchema.fieldPos("sourceId")
+
+    /** Types of the value fields, or null if the value is not a record. */
+    val valueFieldTypes: List<Schema.Type>? = if (valueSchema.type == Schema.Type.RECORD) {
+        valueSchema.fields.map { it.schema().type }
+    } else {
+        null
+    }
+
+    /** Positions of the value fields by name. This is empty if the value is not a record. */
+    val valueFieldPositions: Map<String, Int> = if (valueSchema.type == Schema.Type.RECORD) {
+        valueSchema.fields.associate { it.name() to it.pos() }
+    } else {
+        emptyMap()
+    }
+
+    /** Whether the key class is a generated SpecificRecord class. */
+    val isSpecificKey: Boolean = SpecificRecord::class.java.isAssignableFrom(keyClass)
+
+    /** Whether the value class is a generated SpecificRecord class. */
+    val isSpecificValue: Boolean = SpecificRecord::class.java.isAssignableFrom(valueClass)
+
+    /** Avro data model for keys. */
+    val keyData: GenericData = if (isSpecificKey) SpecificData.getForClass(keyClass) else GenericData.get()
+
+    /** Avro data model for values. */
+    val valueData: GenericData = if (isSpecificValue) SpecificData.getForClass(valueClass) else GenericData.get()
+
+    /** 64-bit Rabin fingerprint of the parsing canonical form of the key schema. */
+    val keyFingerprint: Long = SchemaNormalization.parsingFingerprint64(keySchema)
+
+    /** 64-bit Rabin fingerprint of the parsing canonical form of the value schema. */
+    val valueFingerprint: Long = SchemaNormalization.parsingFingerprint64(valueSchema)
+
+    /** Create a new datum writer for keys. Datum writers are not thread-safe. */
+    @Suppress("UNCHECKED_CAST")
+    fun createKeyWriter(): DatumWriter<K> = keyData.createDatumWriter(keySchema) as DatumWriter<K>
+
+    /** Create a new datum writer for values. Datum writers are not thread-safe. */
+    @Suppress("UNCHECKED_CAST")
+    fun createValueWriter(): DatumWriter<V> = valueData.createDatumWriter(valueSchema) as DatumWriter<V>
+
+    /** Source ID of given key, or null if the key has no source ID. */
+    fun sourceId(key: K): String? {
+        if (sourceIdPos == -1 || key !is IndexedRecord) return null
+        return key.get(sourceIdPos)?.toString()
+    }
+
+    companion object {
+        private fun Schema.fieldPos(name: String): Int {
+            if (type != Schema.Type.RECORD) return -1
+            return getField(name)?.pos() ?: -1
+        }
+    }
+}
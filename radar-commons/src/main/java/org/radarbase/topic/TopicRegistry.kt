@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 The Hyve and King's College London
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.radarbase.topic
+
+import org.apache.avro.Schema
+import org.apache.avro.SchemaNormalization
+import org.apache.avro.specific.SpecificData
+import org.apache.avro.specific.SpecificRecord
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.util.WeakHashMap
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentMap
+
+/**
+ * Thread-safe registry of Avro topics and schemas. Equal schemas and topics are interned, so
+ * that components parsing the same topic share a single instance, and caches keyed on schemas or
+ * topics can use cheap identity comparisons. Specific record classes are resolved at most once
+ * per class name.
+ *
+ * Schemas and topics are only weakly referenced by the registry, so schemas that are, for
+ * example, retrieved from a schema registry, and the topics using them, can be garbage collected
+ * once they are no longer in use.
+ */
+class TopicRegistry {
+    /** Weakly interned schemas, guarded by itself. */
+    private val schemas: MutableMap<Schema, WeakReference<Schema>> = WeakHashMap()
+    private val schemasByFingerprint: ConcurrentMap<Long, FingerprintReference> = ConcurrentHashMap()
+    private val collectedSchemas = ReferenceQueue<Schema>()
+    private val specificClasses: ConcurrentMap<String, SpecificClass> = ConcurrentHashMap()
+    private val topics: ConcurrentMap<TopicKey, TopicReference> = ConcurrentHashMap()
+    private val collectedTopics = ReferenceQueue<AvroTopic<*, *>>()
+
+    /** Number of distinct schemas in the registry. */
+    val schemaCount: Int
+        get() = synchronized(schemas) { schemas.size }
+
+    /** Number of distinct topics in the registry. */
+    val topicCount: Int
+        get() {
+            removeCollectedTopics()
+            return topics.size
+        }
+
+    /**
+     * Get the registered instance of given schema. If no equal schema was registered before,
+     * the given schema is registered and returned.
+     */
+    fun intern(schema: Schema): Schema {
+        synchronized(schemas) {
+            schemas[schema]?.get()?.let { return it }
+            schemas[schema] = WeakReference(schema)
+        }
+        removeCollectedFingerprints()
+        val fingerprint = SchemaNormalization.parsingFingerprint64(schema)
+        schemasByFingerprint.compute(fingerprint) { _, ref ->
+            ref?.takeIf { it.get() != null }
+                ?: FingerprintReference(schema, fingerprint, collectedSchemas)
+        }
+        return schema
+    }
+
+    /**
+     * Get a registered schema by the 64-bit Rabin fingerprint of its parsing canonical form.
+     * If multiple registered schemas share a canonical form, the first one registered is returned.
+     */
+    fun schema(fingerprint: Long): Schema? = schemasByFingerprint[fingerprint]?.get()
+
+    /**
+     * Get a specific record class by name. The class is loaded and its schema is registered
+     * only once.
+     *
+     * @throws IllegalArgumentException if the class does not exist or is not a SpecificRecord
+     * with a class schema.
+     */
+    fun specificClass(className: String): Class<out SpecificRecord> = resolve(className).type
+
+    /**
+     * Get the schema of a specific record class by name.
+     *
+     * @throws IllegalArgumentException if the class does not exist or is not a SpecificRecord
+     * with a class schema.
+     */
+    fun specificSchema(className: String): Schema = resolve(className).schema
+
+    /**
+     * Get the registered topic with given properties, or register a new one.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <K : Any, V : Any> topic(
+        name: String,
+        keySchema: Schema,
+        valueSchema: Schema,
+        keyClass: Class<out K>,
+        valueClass: Class<out V>,
+    ): AvroTopic<K, V> {
+        val key = TopicKey(name, intern(keySchema), intern(valueSchema), keyClass, valueClass)
+        removeCollectedTopics()
+        // keep a strong reference, so the topic cannot be collected before it is returned
+        var topic: AvroTopic<*, *>? = null
+        topics.compute(key) { _, ref ->
+            topic = ref?.get()
+            ref?.takeIf { topic != null }
+                ?: TopicReference(
+                    AvroTopic(name, key.keySchema, key.valueSchema, keyClass, valueClass)
+                        .also { topic = it },
+                    key,
+                    collectedTopics,
+                )
+        }
+        return topic as AvroTopic<K, V>
+    }
+
+    /**
+     * Get the registered topic with given specific record class names, or register a new one.
+     *
+     * @throws IllegalArgumentException if the key or value schema are not valid
+     * Avro SpecificRecord classes
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <K : SpecificRecord, V : SpecificRecord> specificTopic(
+        name: String,
+        keyClassName: String,
+        valueClassName: String,
+    ): AvroTopic<K, V> {
+        val key = resolve(keyClassName)
+        val value = resolve(valueClassName)
+        return topic(
+            name,
+            key.schema,
+            value.schema,
+            key.type as Class<out K>,
+            value.type as Class<out V>,
+        )
+    }
+
+    /** Remove all registered topics, schemas and classes. */
+    fun clear() {
+        topics.clear()
+        specificClasses.clear()
+        schemasByFingerprint.clear()
+        synchronized(schemas) {
+            schemas.clear()
+        }
+    }
+
+    private fun removeCollectedFingerprints() {
+        while (true) {
+            val ref = collectedSchemas.poll() as FingerprintReference? ?: return
+            schemasByFingerprint.remove(ref.fingerprint, ref)
+        }
+    }
+
+    private fun removeCollectedTopics() {
+        while (true) {
+            val ref = collectedTopics.poll() as TopicReference? ?: return
+            topics.remove(ref.key, ref)
+        }
+    }
+
+    private fun resolve(className: String): SpecificClass = specificClasses.computeIfAbsent(className) {
+        try {
+            val type = Class.forName(className)
+            require(SpecificRecord::class.java.isAssignableFrom(type)) {
+                "Schema $className is not a SpecificRecord"
+            }
+            val schema = type.getMethod("getClassSchema").invoke(null) as Schema
+            // check instantiation
+            SpecificData.newInstance(type, schema)
+            @Suppress("UNCHECKED_CAST")
+            SpecificClass(type as Class<out SpecificRecord>, intern(schema))
+        } catch (ex: ClassCastException) {
+            throw IllegalArgumentException("Schema $className cannot be instantiated", ex)
+        } catch (ex: ReflectiveOperationException) {
+            throw IllegalArgumentException("Schema $className cannot be instantiated", ex)
+        }
+    }
+
+    private class FingerprintReference(
+        schema: Schema,
+        val fingerprint: Long,
+        queue: ReferenceQueue<Schema>,
+    ) : WeakReference<Schema>(schema, queue)
+
+    private class TopicReference(
+        topic: AvroTopic<*, *>,
+        val key: TopicKey,
+        queue: ReferenceQueue<AvroTopic<*, *>>,
+    ) : WeakReference<AvroTopic<*, *>>(topic, queue)
+
+    private class SpecificClass(
+        val type: Class<out SpecificRecord>,
+        val schema: Schema,
+    )
+
+    private data class TopicKey(
+        val name: String,
+        val keySchema: Schema,
+        val valueSchema: Schema,
+        val keyClass: Class<*>,
+        val valueClass: Class<*>,
+    )
+
+    companion object {
+        /** Registry shared by default within the process. */
+        @JvmStatic
+        val default: TopicRegistry = TopicRegistry()
+    }
+}
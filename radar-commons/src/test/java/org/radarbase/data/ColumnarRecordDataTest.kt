@@ -0,0 +1,110 @@
+package org.radarbase.data
+
+import io.ktor.http.content.OutgoingContent
+import io.ktor.util.toByteArray
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.close
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runTest
+import org.apache.avro.SchemaBuilder
+import org.apache.avro.generic.GenericRecord
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.radarbase.producer.rest.BinaryRecordContent
+import org.radarbase.producer.rest.RestKafkaSender
+import org.radarbase.producer.schema.ParsedSchemaMetadata
+import org.radarbase.topic.AvroTopic
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneAcceleration
+
+class ColumnarRecordDataTest {
+    private val key = ObservationKey("test", "a", "b")
+    private val topic = AvroTopic(
+        "test",
+        ObservationKey.getClassSchema(),
+        PhoneAcceleration.getClassSchema(),
+        ObservationKey::class.java,
+        PhoneAcceleration::class.java,
+    )
+
+    @Test
+    fun addAndIterate() {
+        val data = ColumnarRecordData(topic, key, initialCapacity = 1)
+        assertTrue(data.isEmpty)
+        val values = (0 until 10).map { PhoneAcceleration(it.toDouble(), it + 0.5, 1f, 2f, it.toFloat()) }
+        values.forEach { data.add(it) }
+        assertFalse(data.isEmpty)
+        assertEquals(10, data.size())
+        assertEquals(values, data.toList())
+        assertEquals(4.5, data.getDouble(4, 1))
+        assertEquals("b", data.sourceId)
+
+        val row = data.addRow()
+        data[row, 0] = 11.0
+        data[row, 4] = 3f
+        assertEquals(PhoneAcceleration(11.0, 0.0, 0f, 0f, 3f), data.last())
+    }
+
+    @Test
+    fun copyDoubles() {
+        val data = ColumnarRecordData(topic, key)
+        (0 until 5).forEach { data.add(PhoneAcceleration(it.toDouble(), 0.0, it * 0.5f, 0f, 0f)) }
+        val destination = DoubleArray(4)
+        data.copyDoubles(2, destination, destinationOffset = 1, startRow = 2, endRow = 5)
+        assertArrayEquals(doubleArrayOf(0.0, 1.0, 1.5, 2.0), destination)
+        assertThrows<IndexOutOfBoundsException> { data.copyDoubles(0, destination, endRow = 6) }
+    }
+
+    @Test
+    fun writeSameAsAvroRecordData() = runTest {
+        val values = (0 until 100).map { PhoneAcceleration(it.toDouble(), it + 0.5, 1f, -2f, it.toFloat()) }
+        val columnar = ColumnarRecordData(topic, key)
+        values.forEach { columnar.add(it) }
+
+        assertArrayEquals(
+            encode(AvroRecordData(topic, key, values)),
+            encode(columnar),
+        )
+    }
+
+    @Test
+    fun unsupportedSchema() {
+        val valueSchema = SchemaBuilder.record("Status").fields()
+            .requiredDouble("time")
+            .requiredString("status")
+            .endRecord()
+        assertThrows<IllegalArgumentException> {
+            ColumnarRecordData(
+                AvroTopic(
+                    "test",
+                    ObservationKey.getClassSchema(),
+                    valueSchema,
+                    ObservationKey::class.java,
+                    GenericRecord::class.java,
+                ),
+                key,
+            )
+        }
+    }
+
+    private suspend fun encode(data: RecordData<ObservationKey, PhoneAcceleration>): ByteArray {
+        val content = BinaryRecordContent(
+            data,
+            ParsedSchemaMetadata(2, 1, topic.keySchema),
+            ParsedSchemaMetadata(4, 2, topic.valueSchema),
+        ).createContent(RestKafkaSender.KAFKA_REST_BINARY_ENCODING) as OutgoingContent.WriteChannelContent
+        val channel = ByteChannel()
+        return coroutineScope {
+            launch {
+                content.writeTo(channel)
+                channel.close()
+            }
+            channel.toByteArray()
+        }
+    }
+}
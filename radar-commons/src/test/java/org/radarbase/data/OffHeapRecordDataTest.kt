@@ -0,0 +1,84 @@
+package org.radarbase.data
+
+import io.ktor.http.content.OutgoingContent
+import io.ktor.util.toByteArray
+import io.ktor.utils.io.ByteChannel
+import io.ktor.utils.io.close
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.test.runTest
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.radarbase.producer.rest.BinaryRecordContent
+import org.radarbase.producer.rest.RestKafkaSender
+import org.radarbase.producer.schema.ParsedSchemaMetadata
+import org.radarbase.topic.AvroTopic
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneAcceleration
+import java.nio.BufferOverflowException
+
+class OffHeapRecordDataTest {
+    private val key = ObservationKey("test", "a", "b")
+    private val topic = AvroTopic(
+        "test",
+        ObservationKey.getClassSchema(),
+        PhoneAcceleration.getClassSchema(),
+        ObservationKey::class.java,
+        PhoneAcceleration::class.java,
+    )
+    private val values = (0 until 100).map { PhoneAcceleration(it.toDouble(), it + 0.5, 1f, -2f, it.toFloat()) }
+
+    @Test
+    fun addAndIterate() {
+        val data = OffHeapRecordData(topic, key, initialCapacity = 16)
+        assertTrue(data.isEmpty)
+        values.forEach { data.add(it) }
+        assertEquals(100, data.size())
+        // length prefix and 2 doubles and 3 floats per value
+        assertEquals(100 * (4 + 2 * 8 + 3 * 4), data.byteSize)
+        assertEquals(values, data.toList())
+        data.clear()
+        assertTrue(data.isEmpty)
+        assertEquals(emptyList<PhoneAcceleration>(), data.toList())
+    }
+
+    @Test
+    fun maxCapacity() {
+        val data = OffHeapRecordData(topic, key, initialCapacity = 16, maxCapacity = 100)
+        data.add(values[0])
+        data.add(values[1])
+        data.add(values[2])
+        assertThrows<BufferOverflowException> { data.add(values[3]) }
+        assertEquals(values.subList(0, 3), data.toList())
+    }
+
+    @Test
+    fun writeSameAsAvroRecordData() = runTest {
+        val offHeap = OffHeapRecordData(topic, key)
+        values.forEach { offHeap.add(it) }
+
+        assertArrayEquals(
+            encode(AvroRecordData(topic, key, values)),
+            encode(offHeap),
+        )
+    }
+
+    private suspend fun encode(data: RecordData<ObservationKey, PhoneAcceleration>): ByteArray {
+        val content = BinaryRecordContent(
+            data,
+            ParsedSchemaMetadata(2, 1, topic.keySchema),
+            ParsedSchemaMetadata(4, 2, topic.valueSchema),
+        ).createContent(RestKafkaSender.KAFKA_REST_BINARY_ENCODING) as OutgoingContent.WriteChannelContent
+        val channel = ByteChannel()
+        return coroutineScope {
+            launch {
+                content.writeTo(channel)
+                channel.close()
+            }
+            channel.toByteArray()
+        }
+    }
+}
@@ -15,14 +15,19 @@
  */
 package org.radarbase.producer.rest
 
+import kotlinx.coroutines.CoroutineStart
+import kotlinx.coroutines.async
 import kotlinx.coroutines.cancel
 import kotlinx.coroutines.delay
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.take
+import kotlinx.coroutines.flow.toList
 import kotlinx.coroutines.runBlocking
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.Timeout
 import java.util.concurrent.TimeUnit
+import kotlin.time.Duration
 import kotlin.time.Duration.Companion.milliseconds
 
 class ConnectionStateTest {
@@ -51,6 +56,43 @@ class ConnectionStateTest {
         state.scope.cancel()
     }
 
+    @Test
+    @Timeout(1, unit = TimeUnit.SECONDS)
+    fun testReconnectAfterTimeout() = runBlocking {
+        val state = ConnectionState(10.milliseconds)
+        val observed = async(start = CoroutineStart.UNDISPATCHED) {
+            state.state.take(4).toList()
+        }
+        state.didConnect()
+        delay(15.milliseconds)
+        state.didConnect()
+        assertEquals(ConnectionState.State.CONNECTED, state.currentState)
+        assertEquals(
+            listOf(
+                ConnectionState.State.UNKNOWN,
+                ConnectionState.State.CONNECTED,
+                ConnectionState.State.UNKNOWN,
+                ConnectionState.State.CONNECTED,
+            ),
+            observed.await(),
+        )
+        state.scope.cancel()
+    }
+
+    @Test
+    @Timeout(1, unit = TimeUnit.SECONDS)
+    fun testInfiniteTimeout() = runBlocking {
+        val state = ConnectionState(Duration.INFINITE)
+        state.assertEqualTo(ConnectionState.State.UNKNOWN)
+        state.didConnect()
+        state.assertEqualTo(ConnectionState.State.CONNECTED)
+        delay(10.milliseconds)
+        state.didConnect()
+        state.assertEqualTo(ConnectionState.State.CONNECTED)
+        assertEquals(ConnectionState.State.CONNECTED, state.currentState)
+        state.scope.cancel()
+    }
+
     private suspend inline fun ConnectionState.assertEqualTo(expected: ConnectionState.State) {
         assertEquals(expected, state.first())
     }
@@ -19,10 +19,16 @@ import com.fasterxml.jackson.core.JsonFactory
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.node.JsonNodeType
+import io.ktor.client.plugins.defaultRequest
+import io.ktor.client.request.header
 import io.ktor.util.moveToByteArray
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
 import kotlinx.coroutines.test.runTest
 import okhttp3.mockwebserver.MockResponse
 import okhttp3.mockwebserver.MockWebServer
+import okhttp3.tls.HandshakeCertificates
+import okhttp3.tls.HeldCertificate
 import org.apache.avro.SchemaValidationException
 import org.apache.avro.io.DecoderFactory
 import org.apache.avro.specific.SpecificDatumReader
@@ -30,10 +36,12 @@ import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertFalse
 import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertSame
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Assertions.fail
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.mockito.Mockito.mock
 import org.mockito.kotlin.doReturn
 import org.mockito.kotlin.stub
@@ -41,6 +49,8 @@ import org.mockito.kotlin.times
 import org.mockito.kotlin.verify
 import org.radarbase.data.AvroRecordData
 import org.radarbase.producer.AuthenticationException
+import org.radarbase.producer.io.HttpTransport
+import org.radarbase.producer.io.unsafeSsl
 import org.radarbase.producer.rest.RestKafkaSender.Companion.restKafkaSender
 import org.radarbase.producer.schema.ParsedSchemaMetadata
 import org.radarbase.producer.schema.SchemaRetriever
@@ -50,6 +60,7 @@ import org.radarcns.kafka.RecordSet
 import org.radarcns.passive.phone.PhoneLight
 import org.slf4j.LoggerFactory
 import java.io.IOException
+import java.net.InetAddress
 import java.nio.charset.StandardCharsets
 import java.util.zip.GZIPInputStream
 
@@ -313,6 +324,140 @@ class RestKafkaSenderTest {
         }
     }
 
+    @Test
+    fun sendHttp2OverTls() = runTest {
+        val localhost = InetAddress.getByName("localhost").canonicalHostName
+        val serverCertificate = HeldCertificate.Builder()
+            .addSubjectAlternativeName(localhost)
+            .addSubjectAlternativeName("localhost")
+            .build()
+        val serverCertificates = HandshakeCertificates.Builder()
+            .heldCertificate(serverCertificate)
+            .build()
+        MockWebServer().use { tlsServer ->
+            tlsServer.useHttps(serverCertificates.sslSocketFactory(), false)
+            tlsServer.start()
+            sender = restKafkaSender {
+                scope = this@runTest
+                baseUrl = tlsServer.url("/").toUrl().toExternalForm()
+                transport = HttpTransport.HTTP_2
+                httpClient {
+                    unsafeSsl()
+                }
+                schemaRetriever = retriever
+            }
+            val topicSender = sender.sender(phoneLightTopic())
+            tlsServer.enqueueJson("{\"offset\": 100}")
+            topicSender.send(ObservationKey("test", "a", "b"), PhoneLight(0.1, 0.2, 0.3f))
+            val request = tlsServer.takeRequest()
+            assertEquals("/topics/test", request.path)
+            // MockWebServer only records HTTP/2 pseudo-headers for h2 streams
+            assertEquals("https", request.getHeader(":scheme"))
+            checkChildren(READER.readTree(request.body.inputStream())["records"])
+        }
+    }
+
+    @Test
+    fun sendHttp2FallsBackToHttp11() = runTest {
+        sender = restKafkaSender {
+            scope = this@runTest
+            baseUrl = webServer.url("/").toUrl().toExternalForm()
+            transport = HttpTransport.HTTP_2
+            httpClient()
+            schemaRetriever = retriever
+        }
+        val topicSender = sender.sender(phoneLightTopic())
+        webServer.enqueueJson("{\"offset\": 100}")
+        topicSender.send(ObservationKey("test", "a", "b"), PhoneLight(0.1, 0.2, 0.3f))
+        val request = webServer.takeRequest()
+        assertEquals("/topics/test", request.path)
+        // a plaintext MockWebServer does not accept the h2c upgrade
+        assertNull(request.getHeader(":scheme"))
+        checkChildren(READER.readTree(request.body.inputStream())["records"])
+    }
+
+    @Test
+    fun sendConcurrentWithConnectionPool() = runTest {
+        sender = restKafkaSender {
+            scope = this@runTest
+            baseUrl = webServer.url("/").toUrl().toExternalForm()
+            connectionPool {
+                maxConnectionsPerRoute = 1
+            }
+            httpClient()
+            schemaRetriever = retriever
+        }
+        val topicSender = sender.sender(phoneLightTopic())
+        val numRequests = 10
+        repeat(numRequests) {
+            webServer.enqueueJson("{\"offset\": 100}")
+        }
+        (0 until numRequests)
+            .map {
+                async {
+                    topicSender.send(ObservationKey("test", "a", "b"), PhoneLight(0.1, 0.2, 0.3f))
+                }
+            }
+            .awaitAll()
+        // all requests were sent over the same connection
+        val sequenceNumbers = (0 until numRequests)
+            .map { webServer.takeRequest().sequenceNumber }
+            .sorted()
+        assertEquals((0 until numRequests).toList(), sequenceNumbers)
+    }
+
+    @Test
+    fun invalidConnectionPool() {
+        assertThrows<IllegalArgumentException> {
+            restKafkaSender {
+                baseUrl = webServer.url("/").toUrl().toExternalForm()
+                connectionPool {
+                    maxConnectionsPerRoute = 0
+                }
+            }
+        }
+    }
+
+    @Test
+    fun sharedHttpClient() = runTest {
+        val sharedClient = HttpTransport.HTTP_1_1.createClient()
+        val senders = (0 until 100).map { i ->
+            restKafkaSender {
+                scope = this@runTest
+                baseUrl = webServer.url("/").toUrl().toExternalForm()
+                httpClient = sharedClient
+                httpClient {
+                    defaultRequest {
+                        header("X-Device", "device$i")
+                    }
+                }
+                schemaRetriever = retriever
+            }
+        }
+        senders.forEach { assertSame(sharedClient.engine, it.restClient.engine) }
+
+        val topicSender = senders[42].sender(phoneLightTopic())
+        webServer.enqueueJson("{\"offset\": 100}")
+        topicSender.send(ObservationKey("test", "a", "b"), PhoneLight(0.1, 0.2, 0.3f))
+        assertEquals("device42", webServer.takeRequest().getHeader("X-Device"))
+    }
+
+    private fun phoneLightTopic(): AvroTopic<ObservationKey, PhoneLight> {
+        val keySchema = ObservationKey.getClassSchema()
+        val valueSchema = PhoneLight.getClassSchema()
+        retriever.stub {
+            onBlocking { metadata("test", false, keySchema) }.doReturn(ParsedSchemaMetadata(10, 2, keySchema))
+            onBlocking { metadata("test", true, valueSchema) }.doReturn(ParsedSchemaMetadata(10, 2, valueSchema))
+        }
+        return AvroTopic(
+            "test",
+            keySchema,
+            valueSchema,
+            ObservationKey::class.java,
+            PhoneLight::class.java,
+        )
+    }
+
     companion object {
         private val logger = LoggerFactory.getLogger(RestKafkaSenderTest::class.java)
         private val FACTORY = JsonFactory()
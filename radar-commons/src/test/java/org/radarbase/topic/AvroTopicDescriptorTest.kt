@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 The Hyve and King's College London
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.radarbase.topic
+
+import org.apache.avro.Schema
+import org.apache.avro.SchemaNormalization
+import org.apache.avro.generic.GenericRecord
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneAcceleration
+
+class AvroTopicDescriptorTest {
+    @Test
+    fun specificTopic() {
+        val topic = AvroTopic(
+            "test",
+            ObservationKey.getClassSchema(),
+            PhoneAcceleration.getClassSchema(),
+            ObservationKey::class.java,
+            PhoneAcceleration::class.java,
+        )
+        val descriptor = topic.descriptor
+        assertEquals(0, descriptor.projectIdPos)
+        assertEquals(1, descriptor.userIdPos)
+        assertEquals(2, descriptor.sourceIdPos)
+        assertEquals(
+            listOf(Schema.Type.DOUBLE, Schema.Type.DOUBLE, Schema.Type.FLOAT, Schema.Type.FLOAT, Schema.Type.FLOAT),
+            descriptor.valueFieldTypes,
+        )
+        assertEquals(2, descriptor.valueFieldPositions["x"])
+        assertTrue(descriptor.isSpecificKey)
+        assertTrue(descriptor.isSpecificValue)
+        assertEquals(
+            SchemaNormalization.parsingFingerprint64(PhoneAcceleration.getClassSchema()),
+            descriptor.valueFingerprint,
+        )
+        assertEquals("c", descriptor.sourceId(ObservationKey("a", "b", "c")))
+    }
+
+    @Test
+    fun genericTopic() {
+        val topic = AvroTopic(
+            "test",
+            Schema.create(Schema.Type.STRING),
+            Schema.create(Schema.Type.LONG),
+            String::class.java,
+            GenericRecord::class.java,
+        )
+        val descriptor = topic.descriptor
+        assertEquals(-1, descriptor.sourceIdPos)
+        assertNull(descriptor.valueFieldTypes)
+        assertFalse(descriptor.isSpecificKey)
+        assertFalse(descriptor.isSpecificValue)
+        assertNull(descriptor.sourceId("key"))
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 The Hyve and King's College London
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.radarbase.topic
+
+import org.apache.avro.Schema
+import org.apache.avro.SchemaNormalization
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotSame
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.radarcns.kafka.ObservationKey
+import org.radarcns.passive.phone.PhoneAcceleration
+
+class TopicRegistryTest {
+    private val registry = TopicRegistry()
+
+    @Test
+    fun internSchema() {
+        val schema = PhoneAcceleration.getClassSchema()
+        val copy = Schema.Parser().parse(schema.toString())
+        assertNotSame(schema, copy)
+        assertSame(schema, registry.intern(schema))
+        assertSame(schema, registry.intern(copy))
+        assertEquals(1, registry.schemaCount)
+        assertSame(schema, registry.schema(SchemaNormalization.parsingFingerprint64(copy)))
+    }
+
+    @Test
+    fun internTopic() {
+        val topic = registry.topic(
+            "test",
+            ObservationKey.getClassSchema(),
+            PhoneAcceleration.getClassSchema(),
+            ObservationKey::class.java,
+            PhoneAcceleration::class.java,
+        )
+        val parsed = registry.specificTopic<ObservationKey, PhoneAcceleration>(
+            "test",
+            ObservationKey::class.java.name,
+            PhoneAcceleration::class.java.name,
+        )
+        assertSame(topic, parsed)
+        assertEquals(1, registry.topicCount)
+        assertEquals(2, registry.schemaCount)
+        assertSame(PhoneAcceleration::class.java, registry.specificClass(PhoneAcceleration::class.java.name))
+    }
+
+    @Test
+    fun releaseUnusedTopic() {
+        registerTopic("unused")
+        var attempts = 0
+        while (registry.topicCount > 0 && attempts < 50) {
+            System.gc()
+            Thread.sleep(10)
+            attempts++
+        }
+        assertEquals(0, registry.topicCount)
+    }
+
+    /** Register a topic without keeping a reference to it. */
+    private fun registerTopic(name: String) {
+        registry.topic(
+            name,
+            ObservationKey.getClassSchema(),
+            PhoneAcceleration.getClassSchema(),
+            ObservationKey::class.java,
+            PhoneAcceleration::class.java,
+        )
+    }
+
+    @Test
+    fun unknownClass() {
+        assertThrows<IllegalArgumentException> {
+            registry.specificClass("unexisting." + PhoneAcceleration::class.java.name)
+        }
+        assertThrows<IllegalArgumentException> {
+            registry.specificClass(String::class.java.name)
+        }
+    }
+}